@@ -6,6 +6,7 @@
  ***************/
 import java.util.Map;
 import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public abstract class AbstractDynamicRouter extends Router {
     protected static final int DEFAULT_HOP_COUNT = 5;
@@ -16,9 +17,6 @@ public abstract class AbstractDynamicRouter extends Router {
         int dest;
         int hopCount; // Maximum hops to get there
         Object payload; // The payload!
-        int sourceVD;
-        int destVD;
-        Map<Integer, Long> costs;
 
         public Packet(int source, int dest, int hopCount) {
             this(source, dest, hopCount, null);
@@ -30,132 +28,240 @@ public abstract class AbstractDynamicRouter extends Router {
             this.hopCount = hopCount;
             this.payload = payload;
         }
+    }
+
+    /**
+     * A routing protocol packet that can be recycled through a PacketPool.
+     * It counts its references: whoever takes it from the pool holds one, a sender adds one
+     * per copy it puts on a link, and each receiver releases its copy once it has read it.
+     * When the count reaches zero the packet goes back to its pool, so it must not be used after release.
+     * Packets made with new (not from a pool) can be released too - nothing happens.
+     **/
+    public static abstract class ControlPacket extends Packet {
+        private final AtomicInteger refs = new AtomicInteger(); // References still held
+        PacketPool<?> pool; // Where it goes back to (null = not pooled)
+
+        public ControlPacket(int source, int dest, int hopCount) {
+            super(source, dest, hopCount);
+        }
 
-        public Packet(int sourceVD, int destVD, Map<Integer, Long> costs) {
-            this.sourceVD = sourceVD;
-            this.destVD = destVD;
-            this.costs = costs;
+        /** Add references (before handing out copies) **/
+        public void retain(int count) {
+            refs.addAndGet(count);
+        }
 
+        /** Drop one reference; the last one returns the packet to its pool **/
+        public void release() {
+            if (pool == null) return;
+            int left = refs.decrementAndGet();
+            if (left == 0) pool.recycle(this);
+            else if (left < 0) throw new IllegalStateException("Packet released more often than retained");
         }
     }
 
-    public static class PingPacket extends Packet {
+    public static class PingPacket extends ControlPacket {
         long pingTime;
 
+        public PingPacket() {
+            super(0, 0, 1);
+        }
+
         public PingPacket(int source, int dest, int hopCount) {
-            // The constructor automatically sets the payload to be the current time
+            this(source, dest, hopCount, System.currentTimeMillis());
+        }
+
+        public PingPacket(int source, int dest, int hopCount, long now) {
+            // The payload is the (network) time the ping was sent
             super(source, dest, hopCount);
-            this.pingTime = System.currentTimeMillis();
+            this.pingTime = now;
+        }
+
+        /** Fill in a pooled ping **/
+        PingPacket set(int source, int dest, long now) {
+            this.source = source;
+            this.dest = dest;
+            this.hopCount = 1;
+            this.pingTime = now;
+            return this;
         }
     }
 
-    public static class PongPacket extends Packet {
+    public static class PongPacket extends ControlPacket {
         long pongTime;
 
+        public PongPacket() {
+            super(0, 0, 1);
+        }
+
         public PongPacket(int source, int dest, int hopCount, long pingTime) {
-            // The constructor automatically sets the payload to be the delta time
-            super(source, dest, hopCount);
-            this.pongTime = System.currentTimeMillis() - pingTime;
+            this(source, dest, hopCount, pingTime, System.currentTimeMillis());
         }
-    }
 
-    // Packet class that contains the table distances
-    public static class TablePacket extends Packet {
-        Map<Integer, Long> tableDistances;
+        public PongPacket(int source, int dest, int hopCount, long pingTime, long now) {
+            // The payload is the delta time
+            super(source, dest, hopCount);
+            this.pongTime = now - pingTime;
+        }
 
-        public TablePacket(int source, Map<Integer, Long> tableDistances) {
-            // The constructor automatically sets the payload to be the current time
-            super(source, -1, 1);
-            this.tableDistances = tableDistances;
+        /** Fill in a pooled pong **/
+        PongPacket set(int source, int dest, long pingTime, long now) {
+            this.source = source;
+            this.dest = dest;
+            this.hopCount = 1;
+            this.pongTime = now - pingTime;
+            return this;
         }
     }
 
     Debug debug; // For debugging
     Map<Integer, Long> neighborCosts; // Stores the costs of each router's neighbors (Between neighbors)
 
+    // Forwarding table (FIB): dense destination index -> outgoing link index (-1 = no route).
+    // Published lazily: the next packet forwarded after publishRoutes copies pendingRoutes into a new
+    // table and swaps it in whole, so a table is never modified after it is published.
+    volatile int[] forwardingTable;
+    int[] pendingRoutes; // The routing algorithm's own dest -> link table, changed since forwardingTable was published (null = none)
+
+    // Recycled pings and pongs (see PacketPool) - enough for a round of pings to every neighbor
+    PacketPool<PingPacket> pingPool;
+    PacketPool<PongPacket> pongPool;
+
     public AbstractDynamicRouter(int nsap, NetworkInterface nic) {
         super(nsap, nic);
-        debug = Debug.getInstance(); // For debugging!
+        debug = nic.getDebug(); // For debugging!
         neighborCosts = new HashMap<>(); // Each router knows the costs of its neighbors
+        forwardingTable = null;
+        int pings = Math.max(16, 2 * nic.getOutgoingLinks().size());
+        pingPool = new PacketPool<>(pings, PingPacket::new);
+        pongPool = new PacketPool<>(pings, PongPacket::new);
+    }
+
+    /**
+     * Send a ping to a neighbor (expecting a "pong" back) to measure the cost of the link to it
+     **/
+    protected void sendPing(int link, int neighbor) {
+        PingPacket ping = pingPool.take().set(this.nsap, neighbor, nic.getTime());
+        if (!nic.sendOnLink(link, ping)) ping.release();
+    }
+
+    /**
+     * Note that the routes changed: routes (dense destination index -> link index) is the routing
+     * algorithm's working copy.  It is copied into a new forwarding table only when a packet
+     * is next forwarded, so a burst of route changes costs one copy, not one each.
+     **/
+    protected void publishRoutes(int[] routes) {
+        pendingRoutes = routes;
+    }
+
+    /**
+     * Send a packet on towards its destination using the forwarding table
+     * @returns false if there is no route to the destination (yet)
+     **/
+    protected boolean forward(Packet p) {
+        if (pendingRoutes != null) {
+            forwardingTable = pendingRoutes.clone();
+            pendingRoutes = null;
+        }
+        int[] table = forwardingTable;
+        int dest = nic.getNodeIndex(p.dest);
+        if (table == null || dest < 0 || table[dest] < 0) return false;
+        nic.sendOnLink(table[dest], p);
+        return true;
     }
 
     protected abstract void route(Packet p);
     protected abstract void findCosts();
 
+    /**
+     * Handle a routing protocol packet that arrived from the given neighbor.
+     * Called before the packet would be routed as data (so its hop count is left alone).
+     * @returns true if the packet was handled
+     **/
+    protected boolean receiveControl(Object data, int originator) { return false; }
+
+    /** A pong just (re)measured the cost to the given neighbor **/
+    protected void neighborCostChanged(int neighbor, long cost) { }
+
     // Time in ms in between finding costs/shortest paths again
     int costDelay = 10000;
 
-    public void run() {
-        long nextFindCost = System.currentTimeMillis() + 1000; // Initially it will wait 1 sec before finging costs
-        while (true) {
-            // Piece of code in charge of running findCost() every costDelay mseconds
-            if (System.currentTimeMillis() > nextFindCost) {
-                // System.out.println("finding costs");
-                nextFindCost = System.currentTimeMillis() + costDelay;
-                findCosts();
-            }
-            // See if there is anything to process
-            boolean process = false;
-            NetworkInterface.TransmitPair toSend = nic.getTransmit();
-            if (toSend != null) {
-                // There is something to send out
-                process = true;
-                debug.println(3, "(AbstractDynamicRouter.run): I am being asked to transmit: " + toSend.data
-                        + " to the destination: " + toSend.destination);
-                // Create new packet and routes it
-                Packet packet = new Packet(nsap, toSend.destination, DEFAULT_HOP_COUNT, toSend.data);
-                route(packet);
-            }
+    long nextFindCost = -1; // Time of the next findCosts() call (-1 means not yet started)
 
-            NetworkInterface.ReceivePair toRoute = nic.getReceived();
-            if (toRoute != null) {
-                // There is something to route through - or it might have arrived at destination
-                process = true;
-                debug.println(3, "(AbstractDynamicRouter.run): I received: " + toRoute.data + " from source: "
-                        + toRoute.originator);
-
-                if (toRoute.data instanceof PingPacket) {
-                    debug.println(4, "Received a PingPacket");
-                    // If we receive a ping packet, respond with a pong
-                    PingPacket packet = (PingPacket) toRoute.data;
-                    int source = packet.source;
-                    long pingTime = packet.pingTime;
-                    PongPacket pong = new PongPacket(this.nsap, source, 1, pingTime);
-                    nic.sendOnLink(nic.getOutgoingLinks().indexOf(source), pong);
-                } else if (toRoute.data instanceof PongPacket) {
-                    debug.println(4, "Received a PongPacket");
-                    // If we receive a pong packet, use it to store the cost we previously requested
-                    PongPacket packet = (PongPacket) toRoute.data;
-                    int source = packet.source; // Source of the packet is the destination of the ping packet
-                    long cost = packet.pongTime;
-                    neighborCosts.put(source, cost); // Stores the cost/link in the neighborCosts map
-                    // adds this step to the debug console
-                    debug.println(5, "Cost(" + this.nsap + ", " + source + ") = " + cost);
-                } else if (toRoute.data instanceof TablePacket) {
-
-                } else if (toRoute.data instanceof Packet) {
-                    // Routing something other than ping/pong is dependent on which algorithm is
-                    // used
-                    Packet packet = (Packet) toRoute.data;
-                    // Reduce the hop count by one
-                    packet.hopCount--;
-                    if (packet.hopCount >= 0) {
-                        route(packet);
-                    } else {
-                        debug.println(4, "Too many hops!");
-                    }
-                } else {
-                    debug.println(4, "Tried to route something that wasn't a packet");
-                }
-            }
+    /** All the work is done in process() **/
+    @Override
+    public boolean isSteppable() { return true; }
 
-            if (!process) {
-                // Didn't do anything, so sleep a bit
-                try {
-                    Thread.sleep(1);
-                } catch (InterruptedException e) {
+    /** Process whatever is waiting on the NIC.  Returns false if there was nothing to do. **/
+    protected boolean process() {
+        if (nextFindCost < 0) {
+            nextFindCost = nic.getTime() + 1000; // Initially it will wait 1 sec before finging costs
+            nic.wakeAt(nextFindCost);
+        }
+        // Piece of code in charge of running findCost() every costDelay mseconds
+        if (nic.getTime() >= nextFindCost) {
+            // System.out.println("finding costs");
+            nextFindCost = nic.getTime() + costDelay;
+            nic.wakeAt(nextFindCost);
+            findCosts();
+        }
+        // See if there is anything to process
+        boolean process = false;
+        NetworkInterface.TransmitPair toSend = nic.getTransmit();
+        if (toSend != null) {
+            // There is something to send out
+            process = true;
+            if (debug.isEnabled(3)) debug.println(3, "(AbstractDynamicRouter.run): I am being asked to transmit: " + toSend.data
+                    + " to the destination: " + toSend.destination);
+            // Create new packet and routes it
+            Packet packet = new Packet(nsap, toSend.destination, DEFAULT_HOP_COUNT, toSend.data);
+            route(packet);
+        }
+
+        NetworkInterface.ReceivePair toRoute = nic.getReceived();
+        if (toRoute != null) {
+            // There is something to route through - or it might have arrived at destination
+            process = true;
+            if (debug.isEnabled(3)) debug.println(3, "(AbstractDynamicRouter.run): I received: " + toRoute.data + " from source: "
+                    + toRoute.originator);
+
+            if (toRoute.data instanceof PingPacket) {
+                debug.println(4, "Received a PingPacket");
+                // If we receive a ping packet, respond with a pong
+                PingPacket packet = (PingPacket) toRoute.data;
+                int source = packet.source;
+                long pingTime = packet.pingTime;
+                packet.release();
+                PongPacket pong = pongPool.take().set(this.nsap, source, pingTime, nic.getTime());
+                if (!nic.sendOnLink(nic.getLinkIndex(source), pong)) pong.release();
+            } else if (toRoute.data instanceof PongPacket) {
+                debug.println(4, "Received a PongPacket");
+                // If we receive a pong packet, use it to store the cost we previously requested
+                PongPacket packet = (PongPacket) toRoute.data;
+                int source = packet.source; // Source of the packet is the destination of the ping packet
+                long cost = packet.pongTime;
+                packet.release();
+                neighborCosts.put(source, cost); // Stores the cost/link in the neighborCosts map
+                neighborCostChanged(source, cost);
+                // adds this step to the debug console
+                debug.println(5, () -> "Cost(" + this.nsap + ", " + source + ") = " + cost);
+            } else if (receiveControl(toRoute.data, toRoute.originator)) {
+                // A routing protocol packet - handled by the routing algorithm (and done with now)
+                if (toRoute.data instanceof ControlPacket) ((ControlPacket) toRoute.data).release();
+            } else if (toRoute.data instanceof Packet) {
+                // Routing something other than ping/pong is dependent on which algorithm is
+                // used
+                Packet packet = (Packet) toRoute.data;
+                // Reduce the hop count by one
+                packet.hopCount--;
+                if (packet.hopCount >= 0) {
+                    route(packet);
+                } else {
+                    debug.println(4, "Too many hops!");
                 }
+            } else {
+                debug.println(4, "Tried to route something that wasn't a packet");
             }
         }
+        return process;
     }
 }
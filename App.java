@@ -184,7 +184,7 @@ public class App extends JFrame {
     private JTextArea statsTextArea = null;
     private void setupStatsWindow() {
         statsWindow = new JDialog(this, "Statistics");
-        statsTextArea = new JTextArea(10, 40);
+        statsTextArea = new JTextArea(18, 40);
         statsTextArea.setEditable(false);
         JScrollPane scrollPane = new JScrollPane(statsTextArea);
         statsWindow.add(scrollPane);
@@ -226,6 +226,16 @@ public class App extends JFrame {
                 sb.append("\nDuplicate packets:   " + stat.getDuplicatePackets());
                 sb.append("\nAverage time taken:  " + statsFormat.format(stat.getMeanTimeTaken()) + " ms");
                 sb.append("\nEWMA time taken:     " + statsFormat.format(stat.getEWMATimeTaken()) + " ms");
+                sb.append("\nTime taken p50:      " + stat.getTimeTakenPercentile(50) + " ms");
+                sb.append("\nTime taken p90:      " + stat.getTimeTakenPercentile(90) + " ms");
+                sb.append("\nTime taken p99:      " + stat.getTimeTakenPercentile(99) + " ms");
+                sb.append("\nTime taken p99.9:    " + stat.getTimeTakenPercentile(99.9) + " ms");
+                sb.append("\nTime taken max:      " + stat.getMaxTimeTaken() + " ms");
+                sb.append("\nLost (presumed):     " + stat.getLostPackets());
+                sb.append("\nIn flight:           " + stat.getPacketsInFlight());
+                sb.append("\nSend rate:           " + statsFormat.format(stat.getSendRate()) + " packets/s");
+                sb.append("\nReceive rate:        " + statsFormat.format(stat.getReceiveRate()) + " packets/s");
+                sb.append("\nQueue drops:         " + net.getQueueDrops());
                 String sbString = sb.toString();
                 statsTextArea.setText(sbString);
             }
@@ -250,7 +260,7 @@ public class App extends JFrame {
                     }
                     if (chooser == null) {
                         chooser = new JFileChooser(new File(System.getProperty("user.dir")));
-                        FileNameExtensionFilter filter = new FileNameExtensionFilter("Networks (GQU)", "gqu");
+                        FileNameExtensionFilter filter = new FileNameExtensionFilter("Networks (GQU, GQB)", "gqu", "gqb");
                         chooser.setFileFilter(filter);
                     }
                     int returnVal = chooser.showOpenDialog(visPane);
@@ -0,0 +1,249 @@
+/***************
+ * BatchRunner
+ *
+ * Runs a sweep of simulations without the GUI: every combination of
+ * topologies x routers x packet rates x seeds, several at a time (one per core by default).
+ * Each run is its own Network with its own Debug, so runs do not share any state.
+ * One CSV row is written per run, as soon as it finishes.
+ *
+ * Usage: java BatchRunner key=value[,value...] ...   (or @file with one key=value per line)
+ *   topology=testGraph.gqu,testGraph2.gqb   Network files (required)
+ *   router=flood,dv,ls                      Routers to try (default: all three)
+ *   workload=poisson,hotspot:10:0.5         Traffic to send (see Workload; default: uniform, runNetwork's own)
+ *   rate=100                                Packets per second (default: 100)
+ *   seed=1..5                               Random seeds - a list and/or ranges (default: 1)
+ *   length=60000                            Length of each run (ms, default: 60000)
+ *   mode=des                                des (virtual time) or realtime (default: des)
+ *   scheduling=pooled                       platform, virtual or pooled router threads (default: pooled)
+ *   partitions=0                            Run each discrete event simulation on this many threads
+ *                                           (see ParallelSimulator; default: 0 = the usual engine)
+ *   threads=4                               Runs at once (default: number of cores)
+ *   debug=0                                 Debug level of each run (default: 0), printed to stderr
+ *   out=results.csv                         Where the rows go (default: standard output)
+ * Real time runs share the machine's clock and cores, so only discrete event runs
+ * are unaffected by running side by side.
+ ***************/
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class BatchRunner {
+    static final String HEADER = "run,topology,router,workload,rate,seed,sent,received,success_pct,lost,in_flight,"
+        + "mean_ms,p50_ms,p99_ms,max_ms,queue_drops,control_packets,control_bytes,convergence_ms,wall_ms";
+
+    // One simulation of the sweep
+    static class Run {
+        int number;
+        String topology;
+        String router;
+        String workload;
+        int rate;
+        long seed;
+
+        Run(int number, String topology, String router, String workload, int rate, long seed) {
+            this.number = number;
+            this.topology = topology;
+            this.router = router;
+            this.workload = workload;
+            this.rate = rate;
+            this.seed = seed;
+        }
+    }
+
+    private Map<String, List<String>> spec;     // The sweep: key -> values
+    private Map<String, Topology> topologies;   // Each topology file, read once and shared (never changed)
+    private PrintWriter out;
+    private long length;
+    private boolean discreteEvent;
+    private Router.Scheduling scheduling;
+    private int debugLevel;
+    private int partitions;
+
+    public BatchRunner(Map<String, List<String>> spec) throws Exception {
+        this.spec = spec;
+        if (!spec.containsKey("topology")) throw new IllegalArgumentException("No topology= given.");
+        topologies = new HashMap<>();
+        for (String file: spec.get("topology")) topologies.put(file, Topology.read(file));
+        length = Long.parseLong(get("length", "60000"));
+        String mode = get("mode", "des");
+        if (!mode.equals("des") && !mode.equals("realtime")) throw new IllegalArgumentException("Unknown mode: " + mode);
+        discreteEvent = mode.equals("des");
+        scheduling = Router.Scheduling.valueOf(get("scheduling", "pooled").toUpperCase());
+        debugLevel = Integer.parseInt(get("debug", "0"));
+        partitions = Integer.parseInt(get("partitions", "0"));
+        if (partitions > 0 && !discreteEvent) throw new IllegalArgumentException("partitions= needs mode=des");
+        for (String router: values("router", "flood,dv,ls")) generator(router);  // Check them before starting
+        for (String w: values("workload", "uniform")) workload(w);
+    }
+
+    public static void main(String[] args) {
+        try {
+            Map<String, List<String>> spec = parse(args);
+            new BatchRunner(spec).run();
+        } catch (Exception e) {
+            System.err.println("Error: " + e.getMessage());
+            System.exit(1);
+        }
+        System.exit(0);  // Any router threads left are not needed
+    }
+
+    /**
+     * Run the whole sweep, a number of runs at a time, and wait for all of them
+     **/
+    public void run() throws Exception {
+        List<Run> runs = new ArrayList<>();
+        for (String topology: spec.get("topology")) {
+            for (String router: values("router", "flood,dv,ls")) {
+                for (String w: values("workload", "uniform")) {
+                    for (String rate: values("rate", "100")) {
+                        for (long seed: seeds(values("seed", "1"))) {
+                            runs.add(new Run(runs.size() + 1, topology, router, w, Integer.parseInt(rate), seed));
+                        }
+                    }
+                }
+            }
+        }
+        int threads = Integer.parseInt(get("threads", "" + Runtime.getRuntime().availableProcessors()));
+        String file = get("out", null);
+        out = file == null ? new PrintWriter(System.out) : new PrintWriter(new FileWriter(file));
+        out.println(HEADER);
+        out.flush();
+        System.err.println("Running " + runs.size() + " simulations, " + threads + " at a time.");
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (Run r: runs) executor.execute(() -> runOne(r));
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        out.flush();
+        if (file != null) out.close();
+    }
+
+    // Simulate one combination and write its row
+    private void runOne(Run r) {
+        long start = System.currentTimeMillis();
+        Network net = new Network(new Debug(debugLevel, System.err));
+        try {
+            net.setDiscreteEvent(discreteEvent);
+            if (partitions > 0) net.setParallel(partitions);
+            net.setSeed(r.seed);
+            net.loadNetwork(topologies.get(r.topology));
+            net.createRouters(generator(r.router), scheduling);
+            net.setWorkload(workload(r.workload));
+            net.runNetwork(new PrintStream(NOWHERE), length, r.rate);
+        } catch (Exception e) {
+            System.err.println("Run " + r.number + " (" + r.topology + ", " + r.router + ", " + r.workload + ", " + r.rate
+                               + " pps, seed " + r.seed + ") failed: " + e);
+            return;
+        } finally {
+            net.shutdown();
+        }
+        Network.Stat stat = net.getStats();
+        long sent = stat.getTotalPacketsSent();
+        long received = stat.getPacketsReceived();
+        String row = r.number + "," + r.topology + "," + r.router + "," + r.workload + "," + r.rate + "," + r.seed + ","
+            + sent + "," + received + "," + String.format("%.2f", sent == 0 ? 0 : 100.0 * received / sent) + ","
+            + stat.getLostPackets() + "," + stat.getPacketsInFlight() + ","
+            + String.format("%.2f", stat.getMeanTimeTaken()) + "," + stat.getTimeTakenPercentile(50) + ","
+            + stat.getTimeTakenPercentile(99) + "," + stat.getMaxTimeTaken() + "," + net.getQueueDrops() + ","
+            + net.getControlPackets() + "," + net.getControlBytes() + "," + net.getConvergenceTime() + ","
+            + (System.currentTimeMillis() - start);
+        synchronized (out) {
+            out.println(row);
+            out.flush();
+        }
+    }
+
+    // The statistics each run prints are not needed - the row has them
+    private static final OutputStream NOWHERE = new OutputStream() {
+            public void write(int b) { }
+            public void write(byte[] b, int off, int len) { }
+        };
+
+    static Router.Generator generator(String name) {
+        switch (name) {
+        case "flood": return new FloodRouter.Generator();
+        case "dv": return new DistanceVectorRouter.Generator();
+        case "ls": return new LinkStateRouter.Generator();
+        default: throw new IllegalArgumentException("Unknown router: " + name + " (use flood, dv or ls)");
+        }
+    }
+
+    // A new factory per run: gravity and hotspot factories keep the matrix they drew
+    static Workload.Factory workload(String name) {
+        return name.equals("uniform") ? null : Workload.parse(name);
+    }
+
+    private String get(String key, String def) {
+        List<String> v = spec.get(key);
+        return v == null ? def : v.get(0);
+    }
+
+    private List<String> values(String key, String def) {
+        List<String> v = spec.get(key);
+        return v != null ? v : split(def);
+    }
+
+    // Seeds: single values and a..b ranges
+    static List<Long> seeds(List<String> values) {
+        List<Long> res = new ArrayList<>();
+        for (String v: values) {
+            int range = v.indexOf("..");
+            if (range < 0) {
+                res.add(Long.parseLong(v));
+            } else {
+                long from = Long.parseLong(v.substring(0, range));
+                long to = Long.parseLong(v.substring(range + 2));
+                for (long s = from; s <= to; s++) res.add(s);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Read the sweep from key=value arguments (an argument @file reads them from a file, one per line, # for comments)
+     **/
+    static Map<String, List<String>> parse(String[] args) throws Exception {
+        Map<String, List<String>> spec = new LinkedHashMap<>();
+        List<String> items = new ArrayList<>();
+        for (String arg: args) {
+            if (!arg.startsWith("@")) {
+                items.add(arg);
+                continue;
+            }
+            try (BufferedReader in = new BufferedReader(new FileReader(arg.substring(1)))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    int comment = line.indexOf('#');
+                    if (comment >= 0) line = line.substring(0, comment);
+                    line = line.trim();
+                    if (!line.isEmpty()) items.add(line);
+                }
+            }
+        }
+        for (String item: items) {
+            int eq = item.indexOf('=');
+            if (eq <= 0) throw new IllegalArgumentException("Expected key=value, not: " + item);
+            spec.put(item.substring(0, eq).trim(), split(item.substring(eq + 1)));
+        }
+        return spec;
+    }
+
+    private static List<String> split(String values) {
+        List<String> res = new ArrayList<>();
+        for (String v: values.split(",")) {
+            if (!v.trim().isEmpty()) res.add(v.trim());
+        }
+        return res;
+    }
+}
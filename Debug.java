@@ -3,34 +3,148 @@
  * Author: Christian Duncan
  *
  * A class use to turn on/off debugging output (with given level)
+ *
+ * getInstance() is the shared default.  A network can be given its own Debug instead
+ * (see Network(Debug)), so several networks can run side by side with their own level and stream.
+ *
+ * Messages that are not simple constants should use the Supplier (or format)
+ * versions of println, so nothing is built unless the level is enabled.
+ * Output is handed to a writer thread through a ring buffer, so printing never
+ * blocks the caller; if the buffer fills, messages are dropped (and counted).
  ***************/
 import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
 
 public class Debug {
+    private static final int BUFFER_SIZE = 8192;  // Messages waiting to be written
+    private static final long FLUSH_TIMEOUT = 1000;  // Longest flush() will wait (ms)
+
     static Debug singleton = null;
-    private int level;
-    private PrintStream err;
-    
-    public static Debug getInstance() {
+    private volatile int level;
+    private volatile PrintStream err;
+    private volatile boolean async;       // Write from the writer thread (true) or the caller (false)
+    private RingBuffer<String> buffer;    // Messages for the writer thread (null until it is started)
+    private AtomicLong queued;            // Messages put on the buffer
+    private volatile long written;        // Messages the writer has written
+    private long droppedReported;         // Drops already reported by the writer
+    private Thread writer;
+
+    public static synchronized Debug getInstance() {
         if (singleton == null)
             singleton = new Debug();
         return singleton;
     }
 
     private Debug() {
-        level = 10;  // 0, lower=less output, so this only outputs very important messages.
-        err = System.err;
+        this(10, System.err);  // 0, lower=less output, so this only outputs very important messages.
+        setAsync(true);
+    }
+
+    /**
+     * A separate Debug printing at the given level to the given stream.
+     * Writes from the caller's thread until setAsync(true) is called.
+     **/
+    public Debug(int level, PrintStream err) {
+        this.level = level;
+        this.err = err;
+        async = false;
+        buffer = null;
+        queued = new AtomicLong(0);
+        written = 0;
+        droppedReported = 0;
+        writer = null;
     }
 
     public int getLevel() { return level; }
     public void setLevel(int level) { this.level = level; }
     public void setStream(PrintStream err) { this.err = err; }
     public PrintStream getStream() { return this.err; }
+    public synchronized void setAsync(boolean async) {
+        if (async && writer == null) {
+            // The writer thread is only started when first needed
+            buffer = new RingBuffer<>(BUFFER_SIZE);
+            writer = new Thread(this::writeLoop, "DebugWriter");
+            writer.setDaemon(true);
+            writer.start();
+        }
+        if (!async) flush();
+        this.async = async;
+    }
+
+    /** True if messages at the given level are printed - use to guard expensive debugging work **/
+    public boolean isEnabled(int level) { return this.level >= level; }
+
     public void println(int level, String message) {
         if (this.level >= level) {
-            synchronized (err) {
-                err.println("DEBUG (" + level + "): " + message);
+            write("DEBUG (" + level + "): " + message);
+        }
+    }
+
+    /** Print a message that is only built if the level is enabled **/
+    public void println(int level, Supplier<String> message) {
+        if (this.level >= level) {
+            write("DEBUG (" + level + "): " + message.get());
+        }
+    }
+
+    /** Print a String.format style message - only formatted if the level is enabled **/
+    public void printf(int level, String format, Object... args) {
+        if (this.level >= level) {
+            write("DEBUG (" + level + "): " + String.format(format, args));
+        }
+    }
+
+    /** Messages dropped because the writer could not keep up **/
+    public long getDropped() { return buffer == null ? 0 : buffer.getDropped(); }
+
+    /**
+     * Wait (a short while at most) until everything printed so far has been written
+     **/
+    public void flush() {
+        if (writer == null) {
+            err.flush();
+            return;
+        }
+        long target = queued.get();
+        long deadline = System.currentTimeMillis() + FLUSH_TIMEOUT;
+        while (written < target && System.currentTimeMillis() < deadline) {
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(100000);
+        }
+        err.flush();
+    }
+
+    private void write(String line) {
+        if (!async) {
+            PrintStream out = err;
+            synchronized (out) {
+                out.println(line);
+            }
+        } else if (buffer.offer(line)) {
+            queued.incrementAndGet();
+        }
+    }
+
+    // The writer thread: drain the buffer, nap briefly when it is empty
+    private void writeLoop() {
+        while (true) {
+            String line = buffer.poll();
+            if (line == null) {
+                long dropped = buffer.getDropped();
+                if (dropped > droppedReported) {
+                    err.println("DEBUG: " + (dropped - droppedReported) + " messages dropped (output could not keep up)");
+                    droppedReported = dropped;
+                }
+                LockSupport.parkNanos(1000000);
+                continue;
+            }
+            PrintStream out = err;
+            synchronized (out) {
+                out.println(line);
             }
+            written++;
         }
     }
 }
@@ -1,26 +1,74 @@
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 /***************
- * DistanceVectorRouter 
- * Authors: Brian Carballo, Ryan Clark, James Jacobson 
+ * DistanceVectorRouter
+ * Authors: Brian Carballo, Ryan Clark, James Jacobson
  * Represents a router that uses a Distance Vector Routing algorithm.
+ *
+ * Neighbors are sent the whole table every FULL_REFRESH_CYCLES cost cycles.  In between,
+ * only entries that changed are sent, shortly after they change (triggered updates).
+ * Routes are never advertised back to the neighbor they go through: that neighbor is
+ * told the destination is unreachable instead (split horizon with poison reverse).
+ *
+ * All tables are long/int arrays indexed by dense node index (see NetworkInterface.getNodeIndex),
+ * allocated once, so recomputing routes creates no garbage.  The table packets sent to
+ * neighbors are recycled (see PacketPool); only a new forwarding table, when routes have changed, is allocated.
  ***************/
 
 public class DistanceVectorRouter extends AbstractDynamicRouter {
-    Map<Integer, Integer> routingTable; //Hashmap that stores routes for packet to take. Each route is stored under its destination key
-    ArrayList<Map<Integer, Long>> neighborTables; // Tables that are being recieved from neighbors
+    static final long INFINITY = 10000;        // Distance (ms) treated as unreachable - packets this slow are presumed lost anyway
+    static final long TRIGGER_DELAY = 100;     // Time (ms) to gather changes before sending a triggered update
+    static final int FULL_REFRESH_CYCLES = 3;  // Send the whole table every this many findCosts() cycles
+    static final int TOLERANCE = 10;           // Distance changes within 1/TOLERANCE of what was advertised are not sent
+    static final int TABLE_POOL_SIZE = 4;      // Spare table packets kept for reuse (a full one is as big as the table)
+
+    int nodes; // Number of nodes in the network (size of every table)
+    int self; // Our own dense index
+    long[] distance; // Our current distance to each destination (INFINITY = unreachable)
+    int[] nextHop; // The link each destination is routed on (-1 = this node/unreachable)
+    long[] spareDistance; // The other half of the double buffer - the next full rebuild is done here
+    int[] spareNextHop;
+    long[][] neighborTables; // Tables that are being recieved from neighbors (per link, null until the first one)
+    long[] neighborCost; // Cost of each link (INFINITY until measured)
+
+    long[] advertisedDistance; // The distance we last advertised for each destination (INFINITY = not advertised)
+    int[] advertisedHop; // The link it used (decides who got poisoned)
+    boolean[] changed; // Destinations to include in the next triggered update
+    int[] changedList;
+    int changedCount;
+    boolean routesDirty; // nextHop changed since the forwarding table was last published
+    long triggerTime; // When the next triggered update goes out (-1 = none pending)
+    int cycle; // findCosts() cycles so far
+    PacketPool<TablePacket> tablePool; // Recycled table packets
 
     public DistanceVectorRouter(int nsap, NetworkInterface nic) {
         super(nsap, nic);
         //Instantiate tables
-        routingTable = new HashMap<>();
+        nodes = nic.getNodeCount();
+        self = nic.getNodeIndex(nsap);
+        distance = new long[nodes];
+        nextHop = new int[nodes];
+        spareDistance = new long[nodes];
+        spareNextHop = new int[nodes];
+        Arrays.fill(distance, INFINITY);
+        Arrays.fill(nextHop, -1);
+        distance[self] = 0;
         int size = nic.getOutgoingLinks().size(); // number of links
-        neighborTables = new ArrayList<>(size);
-        for (int i = 0; i < size; i++) {
-            neighborTables.add(null);
-        }
+        neighborTables = new long[size][];
+        neighborCost = new long[size];
+        Arrays.fill(neighborCost, INFINITY);
+        advertisedDistance = new long[nodes];
+        advertisedHop = new int[nodes];
+        Arrays.fill(advertisedDistance, INFINITY);
+        Arrays.fill(advertisedHop, -1);
+        changed = new boolean[nodes];
+        changedList = new int[nodes];
+        changedCount = 0;
+        routesDirty = true;
+        triggerTime = -1;
+        cycle = 0;
+        tablePool = new PacketPool<>(TABLE_POOL_SIZE, TablePacket::new);
     }
 
     public static class Generator extends Router.Generator {
@@ -29,45 +77,140 @@ public class DistanceVectorRouter extends AbstractDynamicRouter {
         }
     }
 
-    // Special packet used to send tables to other nodes
-    public static class TablePacket extends Packet {
-        Map<Integer, Long> tableDistances;
+    /**
+     * Special packet used to send tables to other nodes.
+     * Read-only once sent - one is shared by all the neighbors it is sent to, and goes back
+     * to the sender's pool when the last of them has read it (see ControlPacket).
+     * Each entry also names the next stop, so a neighbor can tell which routes go through
+     * it and treat them as unreachable (poison reverse) without a separate packet per neighbor.
+     **/
+    public static class TablePacket extends ControlPacket {
+        int count; // Number of entries (the arrays may be longer - they are reused)
+        int[] destinations; // NSAP of each destination
+        long[] distances; // Distance to it (INFINITY = unreachable)
+        int[] nextStops; // NSAP of the neighbor the route goes through (-1 for the source itself)
+        boolean full; // The whole table (replaces the previous one) or just the entries that changed
+
+        public TablePacket() {
+            super(-1, -1, 1);
+            destinations = new int[0];
+            distances = new long[0];
+            nextStops = new int[0];
+        }
+
+        /** Start filling in a pooled table of count entries **/
+        TablePacket set(int source, int count, boolean full) {
+            this.source = source;
+            this.count = count;
+            this.full = full;
+            if (destinations.length < count) {
+                destinations = new int[count];
+                distances = new long[count];
+                nextStops = new int[count];
+            }
+            return this;
+        }
+
+        /** Estimated size on the wire: a small header plus (destination, distance, next stop) per entry **/
+        public int getSize() { return 8 + 16 * count; }
+    }
+
+    @Override
+    protected boolean process() {
+        boolean process = super.process();
+        // Send a triggered update once its time comes
+        if (triggerTime >= 0 && nic.getTime() >= triggerTime) {
+            sendUpdate(false);
+        }
+        return process;
+    }
 
-        public TablePacket(int source, Map<Integer, Long> tableDistances) {
-            super(source, -1, 1);
-            this.tableDistances = tableDistances;
+    /**
+     * A pong measured a link again.  A noticeable change is acted on right away (as a table
+     * update is): the destinations routed on the link are recomputed, any the link is now
+     * better for move to it, and the changes go out in a triggered update.
+     * Changes within 1/TOLERANCE (ping jitter) wait for the next full rebuild.
+     **/
+    @Override
+    protected void neighborCostChanged(int neighbor, long cost) {
+        int link = nic.getLinkIndex(neighbor);
+        if (link < 0) return;
+        long old = neighborCost[link];
+        cost = Math.min(cost, INFINITY);
+        neighborCost[link] = cost;
+        if (old < INFINITY && cost < INFINITY && Math.abs(cost - old) <= old / TOLERANCE) return;
+        long[] table = neighborTables[link];
+        if (table == null) return;  // No table from that neighbor yet - nothing to route through it
+        for (int dest = 0; dest < nodes; dest++) {
+            if (dest == self) continue;
+            if (nextHop[dest] == link) {
+                updateDestination(dest);
+            } else if (table[dest] + cost < distance[dest]) {
+                distance[dest] = table[dest] + cost;
+                nextHop[dest] = link;
+                routesDirty = true;
+                noteChange(dest, distance[dest], link);
+            }
+        }
+        routesUpdated();
+    }
 
+    //Table packets - one snapshot is shared by all the neighbors, so it is handled here (its hop count is left alone)
+    @Override
+    protected boolean receiveControl(Object data, int originator) {
+        if (!(data instanceof TablePacket)) return false;
+        TablePacket table = (TablePacket) data;
+        int source = table.source;
+        //Find the source of packet
+        int sourceIndex = nic.getLinkIndex(source);
+        if (sourceIndex < 0) {
+            // No link back to that neighbor, so we can't route through it
+            debug.println(4, () -> "Router " + this.nsap + ": Ignoring table from " + source + " (no link to it)");
+            return true;
+        }
+        //Saves table from source - all of it, or just the changes
+        long[] known = neighborTables[sourceIndex];
+        if (known == null) {
+            known = new long[nodes];
+            neighborTables[sourceIndex] = known;
+            Arrays.fill(known, INFINITY);
+        } else if (table.full) {
+            Arrays.fill(known, INFINITY);
+        }
+        for (int k = 0; k < table.count; k++) {
+            int dest = nic.getNodeIndex(table.destinations[k]);
+            if (dest < 0) continue;
+            // Routes through us are no use to us (poison reverse)
+            known[dest] = table.nextStops[k] == this.nsap ? INFINITY : table.distances[k];
         }
+        //See what that changes for us
+        if (table.full) {
+            buildTableIndex();
+        } else {
+            for (int k = 0; k < table.count; k++) {
+                int dest = nic.getNodeIndex(table.destinations[k]);
+                if (dest >= 0) updateDestination(dest);
+            }
+            routesUpdated();
+        }
+        return true;
     }
 
     //Handles packets not handled by AbstractDynamicRouter
     @Override
     protected void route(Packet p) {
-        int source = p.source;
-        //Checks if packet is Table Packet and processes it
-        if (p instanceof TablePacket) {
-            //Find the source of packet
-            int sourceIndex = nic.getOutgoingLinks().indexOf(source);
-            //Saves table from source using source NSAP as key
-            neighborTables.set(sourceIndex, ((TablePacket) p).tableDistances);
+        // This is a normal data packet
+        debug.println(4, "Received a Packet");
+
+        if (p.dest == this.nsap) {
+            // Packet has arrived at its destination, so report that it was received successfully!
+            nic.trackArrivals(p.payload);
         } else {
-             // This is a normal data packet
-             debug.println(4, "Received a Packet");
-
-             if (p.dest == this.nsap) {
-                 // Packet has arrived at its destination, so report that it was received successfully!
-                 nic.trackArrivals(p.payload);
-             } else {
-                 // Lookup the next stop from routing table and send the packet there
-                 Integer nextStop = routingTable.get(p.dest);
-                 if (nextStop != null) {
-                     int linkIndex = nic.getOutgoingLinks().indexOf(nextStop);
-                     nic.sendOnLink(linkIndex, p);
-                 } else {
-                     // Destination is not in the routing table yet. Drop the packet.
-                     debug.println(4, "Router " + this.nsap + ": Router " + p.dest + " is not in my routing table yet. All I have is " + routingTable.toString());
-                 }   
-             }
+            // Lookup the link to the next stop in the forwarding table and send the packet there
+            if (!forward(p)) {
+                // Destination is not in the routing table yet. Drop the packet.
+                debug.println(4, () -> "Router " + this.nsap + ": Router " + p.dest + " is not in my routing table yet. All I have is " + routingTableString());
+            }
         }
     }
 
@@ -78,52 +221,166 @@ public class DistanceVectorRouter extends AbstractDynamicRouter {
         ArrayList<Integer> neighbors = nic.getOutgoingLinks();
         //Send a ping packet to each neighbor to estimate distances
         for (int i = 0; i < neighbors.size(); i++) {
-            int neighbor = neighbors.get(i);
-            Packet pingPacket = new PingPacket(super.nsap, neighbor, 1);
-            nic.sendOnLink(i, pingPacket);
+            sendPing(i, neighbors.get(i));
         }
         //Build table based on information recieved between ping packet sending
         buildTableIndex();
+        //Every so often send the whole table, in case an update was lost
+        if (cycle++ % FULL_REFRESH_CYCLES == 0) {
+            sendUpdate(true);
+        }
     }
 
+    /**
+     * Rebuild the whole routing table from the neighbor tables and link costs (into the spare
+     * buffers, which then become the current ones).
+     * Destinations whose route changed noticeably are queued for a triggered update.
+     **/
     protected void buildTableIndex() {
-        //Create a temp empty table index to hold changes to routing table and empty distance table to hold new distances before sending
-        Map<Integer,Integer> tempTableIndex = new HashMap<>(); //NSAP of destination used as key, route saved as value
-        Map<Integer, Long> tempTableDistances = new HashMap<>(); //Table with distances to be sent to other nodes
-        
-        //Insert node with distance 0 and index -1 to represent this node
-        tempTableIndex.put(this.nsap, -1);
-        tempTableDistances.put(this.nsap,0L);
-         
-        //go through all neighbor tables to update table index and table distances 
-        for (int i = 0; i< neighborTables.size(); i++){
-            //Grab the NSAP of neighbor
-            int nsap = nic.getOutgoingLinks().get(i);
-            //Lookup neighbor table
-            Map<Integer,Long> table = neighborTables.get(i);
-            if (table != null){
-                //For each destination saved in the table
-                for (Integer dest: table.keySet()) {
-                    //Save distance from neighbor to destination
-                    Long distance = table.get(dest);
-                    //Save new distance if destination does not yet exist in table or a faster route is found
-                    if(tempTableDistances.get(dest) == null || tempTableDistances.get(dest) > distance + neighborCosts.get(nsap)){
-                        tempTableDistances.put(dest,neighborCosts.get(nsap)+ distance);
-                        tempTableIndex.put(dest, nsap);
-                    }
+        long[] newDistance = spareDistance;
+        int[] newNextHop = spareNextHop;
+        Arrays.fill(newDistance, INFINITY);
+        Arrays.fill(newNextHop, -1);
+        //This node is at distance 0
+        newDistance[self] = 0;
+
+        //go through all neighbor tables for the best route to each destination
+        for (int i = 0; i < neighborTables.length; i++) {
+            long[] table = neighborTables[i];
+            long cost = neighborCost[i];
+            if (table == null || cost >= INFINITY) continue;
+            for (int dest = 0; dest < nodes; dest++) {
+                long d = table[dest] + cost;
+                if (d < newDistance[dest] && dest != self) {
+                    newDistance[dest] = d;
+                    newNextHop[dest] = i;
                 }
             }
-         }
-        
-        //transmit tableDistance to all neighbors
-        ArrayList<Integer> neighbors = nic.getOutgoingLinks();
-        for (int i = 0; i < neighbors.size(); i++) {
-            TablePacket p = new TablePacket(this.nsap, tempTableDistances);
-            nic.sendOnLink(i, p);
         }
-    
-        //Saves any final changes to routing table
-        this.routingTable = tempTableIndex;    
+
+        //Note what changed, then swap the buffers
+        for (int dest = 0; dest < nodes; dest++) {
+            if (newDistance[dest] >= INFINITY) {
+                newDistance[dest] = INFINITY;
+                newNextHop[dest] = -1;
+            }
+            if (newNextHop[dest] != nextHop[dest]) routesDirty = true;
+            noteChange(dest, newDistance[dest], newNextHop[dest]);
+        }
+        spareDistance = distance;
+        spareNextHop = nextHop;
+        distance = newDistance;
+        nextHop = newNextHop;
+        if (pendingRoutes != null) pendingRoutes = nextHop; // Not copied yet - follow the swap
+        routesUpdated();
+    }
+
+    // Recompute the route to one destination (after a neighbor's update mentioned it)
+    private void updateDestination(int dest) {
+        if (dest == self) return;
+        long best = INFINITY;
+        int bestHop = -1;
+        for (int i = 0; i < neighborTables.length; i++) {
+            long[] table = neighborTables[i];
+            long cost = neighborCost[i];
+            if (table == null || cost >= INFINITY) continue;
+            long d = table[dest] + cost;
+            if (d < best) {
+                best = d;
+                bestHop = i;
+            }
+        }
+        if (best >= INFINITY) {
+            best = INFINITY;
+            bestHop = -1;
+        }
+        if (bestHop != nextHop[dest]) routesDirty = true;
+        distance[dest] = best;
+        nextHop[dest] = bestHop;
+        noteChange(dest, best, bestHop);
+    }
+
+    // Queue a destination for the next triggered update if it differs enough from what we last advertised
+    private void noteChange(int dest, long d, int hop) {
+        if (changed[dest]) return;
+        long advertised = advertisedDistance[dest];
+        boolean differs;
+        if (advertised >= INFINITY || d >= INFINITY) differs = advertised != d;
+        else differs = hop != advertisedHop[dest] || Math.abs(d - advertised) > advertised / TOLERANCE;
+        if (differs) {
+            changed[dest] = true;
+            changedList[changedCount++] = dest;
+        }
+    }
+
+    // Publish a new forwarding table if any route moved, and schedule a triggered update if needed
+    private void routesUpdated() {
+        if (routesDirty) {
+            routesDirty = false;
+            publishRoutes(nextHop);
+            nic.routesChanged();
+        }
+        //Let the neighbors know soon (gathering anything else that changes meanwhile)
+        if (changedCount > 0 && triggerTime < 0) {
+            triggerTime = nic.getTime() + TRIGGER_DELAY;
+            nic.wakeAt(triggerTime);
+        }
+    }
+
+    /**
+     * Send our table to every neighbor: the whole table, or just the entries that changed.
+     * One snapshot is shared by all of them.
+     **/
+    private void sendUpdate(boolean full) {
+        int count = 0;
+        if (full) {
+            for (int dest = 0; dest < nodes; dest++) {
+                if (distance[dest] < INFINITY || advertisedDistance[dest] < INFINITY) count++;
+            }
+        } else {
+            count = changedCount;
+        }
+        if (count > 0) {
+            TablePacket p = tablePool.take().set(this.nsap, count, full);
+            int[] destinations = p.destinations;
+            long[] distances = p.distances;
+            int[] nextStops = p.nextStops;
+            int k = 0;
+            for (int j = 0; k < count; j++) {
+                int dest = full ? j : changedList[j];
+                if (full && distance[dest] >= INFINITY && advertisedDistance[dest] >= INFINITY) continue;
+                destinations[k] = nic.getNodeId(dest);
+                distances[k] = distance[dest];
+                nextStops[k] = nextHop[dest] < 0 ? -1 : nic.getOutgoingLinks().get(nextHop[dest]);
+                //Remember what we told them
+                advertisedDistance[dest] = distance[dest];
+                advertisedHop[dest] = nextHop[dest];
+                k++;
+            }
+            //One reference per neighbor it goes to (each releases it once read), plus ours until we are done
+            int links = nic.getOutgoingLinks().size();
+            p.retain(links);
+            for (int i = 0; i < links; i++) {
+                if (nic.sendOnLink(i, p)) nic.countControlPacket(p.getSize());
+                else p.release();
+            }
+            p.release();
+        }
+        for (int j = 0; j < changedCount; j++) changed[changedList[j]] = false;
+        changedCount = 0;
+        triggerTime = -1;
+    }
+
+    // The routing table as <destination=next stop> text (for debugging)
+    String routingTableString() {
+        StringBuilder res = new StringBuilder("{");
+        for (int dest = 0; dest < nodes; dest++) {
+            if (distance[dest] >= INFINITY) continue;
+            if (res.length() > 1) res.append(", ");
+            res.append(nic.getNodeId(dest)).append('=');
+            res.append(nextHop[dest] < 0 ? -1 : nic.getOutgoingLinks().get(nextHop[dest]));
+        }
+        return res.append('}').toString();
     }
 
 }
@@ -35,48 +35,46 @@ public class FloodRouter extends Router {
     
     public FloodRouter(int nsap, NetworkInterface nic) {
         super(nsap, nic);
-        debug = Debug.getInstance();  // For debugging!
+        debug = nic.getDebug();  // For debugging!
     }
 
-    public void run() {
-        while (true) {
-            // See if there is anything to process
-            boolean process = false;
-            NetworkInterface.TransmitPair toSend = nic.getTransmit();
-            if (toSend != null) {
-                // There is something to send out
-                process = true;
-                route(-1, new Packet(nsap, toSend.destination, 5, toSend.data));
-            }
+    /** All the work is done in process() **/
+    @Override
+    public boolean isSteppable() { return true; }
+
+    /** Process whatever is waiting on the NIC.  Returns false if there was nothing to do. **/
+    protected boolean process() {
+        // See if there is anything to process
+        boolean process = false;
+        NetworkInterface.TransmitPair toSend = nic.getTransmit();
+        if (toSend != null) {
+            // There is something to send out
+            process = true;
+            route(-1, new Packet(nsap, toSend.destination, 5, toSend.data));
+        }
 
-            NetworkInterface.ReceivePair toRoute = nic.getReceived();
-            if (toRoute != null) {
-                // There is something to route through - or it might have arrived at destination
-                process = true;
-                if (toRoute.data instanceof Packet) {
-                    Packet p = (Packet) toRoute.data;
-                    if (p.dest == nsap) {
-                        // It made it!  Inform the "network" for statistics tracking purposes
-                        debug.println(4, "(FloodRouter.run): Packet has arrived!  Reporting to the NIC - for accounting purposes!");
-                        debug.println(6, "(FloodRouter.run): Payload: " + p.payload);
-                        nic.trackArrivals(p.payload);
-                    } else if (p.hopCount > 0) {
-                        // Still more routing to do
-                        p.hopCount--;
-                        route(toRoute.originator, p);
-                    } else {
-                        debug.println(5, "Packet has too many hops.  Dropping packet from " + p.source + " to " + p.dest + " by router " + nsap);
-                    }
+        NetworkInterface.ReceivePair toRoute = nic.getReceived();
+        if (toRoute != null) {
+            // There is something to route through - or it might have arrived at destination
+            process = true;
+            if (toRoute.data instanceof Packet) {
+                Packet p = (Packet) toRoute.data;
+                if (p.dest == nsap) {
+                    // It made it!  Inform the "network" for statistics tracking purposes
+                    debug.println(4, "(FloodRouter.run): Packet has arrived!  Reporting to the NIC - for accounting purposes!");
+                    debug.println(6, () -> "(FloodRouter.run): Payload: " + p.payload);
+                    nic.trackArrivals(p.payload);
+                } else if (p.hopCount > 0) {
+                    // Still more routing to do - a copy, since the neighbors that got this packet share it
+                    route(toRoute.originator, new Packet(p.source, p.dest, p.hopCount - 1, p.payload));
                 } else {
-                    debug.println(0, "Error.  The packet being tranmitted is not a recognized Flood Packet.  Not processing");
+                    debug.println(5, () -> "Packet has too many hops.  Dropping packet from " + p.source + " to " + p.dest + " by router " + nsap);
                 }
-            }
-
-            if (!process) {
-                // Didn't do anything, so sleep
-                try { Thread.sleep(1); } catch (InterruptedException e) { }
+            } else {
+                debug.println(0, "Error.  The packet being tranmitted is not a recognized Flood Packet.  Not processing");
             }
         }
+        return process;
     }
 
     /** Route the given packet out.
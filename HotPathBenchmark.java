@@ -0,0 +1,223 @@
+/***************
+ * HotPathBenchmark
+ *
+ * The simulator's hot paths, set up on a generated network of any size, for the JMH
+ * benchmarks in src/jmh/java (run them with "gradle jmh" - see build.gradle):
+ *   load .gqu / .gqb      Network.loadNetwork from the text and the binary format
+ *   LS full / LS incr     LinkStateRouter.findShortestPaths from scratch, and after one link cost change
+ *   DV table              DistanceVectorRouter.buildTableIndex over full neighbor tables
+ *   route Flood/DV/LS     One data packet through a router: off the NIC, routed, onto a link
+ *                         (the links are stubbed out, so only the router's own work is timed)
+ *   NIC queue             NetworkInterface receive/getReceived (see queue())
+ * Run them before and after a change to see what the change did.
+ ***************/
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+public class HotPathBenchmark {
+    static final int DEGREE = 4;            // Links per node (both directions)
+    static final int QUEUE_CAPACITY = 1024; // NIC queue size
+
+    /**
+     * A network interface whose links go nowhere: sends just count, and timers are ignored.
+     * Lets a router be driven directly, without the rest of the network running.
+     **/
+    static class NullLinkInterface extends NetworkInterface {
+        long sent = 0;
+
+        public NullLinkInterface(Network net, int nsap, ArrayList<Integer> outgoingLinks) {
+            super(net, nsap, outgoingLinks, new ArrayList<>(), QUEUE_CAPACITY);
+        }
+
+        @Override
+        public boolean sendOnLink(int linkIndex, Object packet) {
+            sent++;
+            return true;
+        }
+
+        @Override
+        public void wakeAt(long time) { }
+    }
+
+    // The network and the routers the operations are run on
+    private Topology t;
+    private File text, binary;
+    private Random rand;
+    private NullLinkInterface lsNic, dvNic, floodNic;
+    private LinkStateRouter ls;
+    private DistanceVectorRouter dv;
+    private FloodRouter flood;
+    private int[] dests;       // Destinations of the routed packets (in turn)
+    private int next;          // The next one
+    private int from;          // The neighbor the packets come from
+    private FloodRouter.Packet floodPacket;
+    private AbstractDynamicRouter.Packet packet;
+
+    /**
+     * Set up every operation on a generated network of n nodes
+     **/
+    public HotPathBenchmark(int n, Random rand) throws Exception {
+        this.rand = rand;
+        t = generate(n, rand);
+        int m = t.getEdgeCount();
+
+        // Both formats to load
+        text = File.createTempFile("bench", ".gqu");
+        binary = File.createTempFile("bench", ".gqb");
+        text.deleteOnExit();
+        binary.deleteOnExit();
+        writeText(t, text);
+        t.writeBinary(binary.getPath());
+
+        Network net = new Network();
+        net.loadNetwork(t);
+        ArrayList<Integer> outgoing = new ArrayList<>();
+        for (int e = 0; e < m; e++) {
+            if (t.edgeSource[e] == 1) outgoing.add(t.edgeDest[e]);
+        }
+
+        // Link state: every node's link costs known to router 1
+        lsNic = new NullLinkInterface(net, 1, outgoing);
+        ls = new LinkStateRouter(1, lsNic);
+        Map<Integer, Map<Integer, Long>> costs = new HashMap<>();
+        for (int e = 0; e < m; e++) {
+            costs.computeIfAbsent(t.edgeSource[e], k -> new HashMap<>())
+                .merge(t.edgeDest[e], (long) t.meanSpeed[e], Math::min);
+        }
+        costs.forEach(ls::setLinkState);
+        ls.findShortestPaths();
+        ls.nextFindCost = Long.MAX_VALUE;  // Timers never fire here
+
+        // Distance vector: a full table from every neighbor
+        dvNic = new NullLinkInterface(net, 1, outgoing);
+        dv = new DistanceVectorRouter(1, dvNic);
+        for (int i = 0; i < outgoing.size(); i++) {
+            long[] table = new long[n];
+            for (int v = 0; v < n; v++) table[v] = 1 + rand.nextInt(1000);
+            dv.neighborTables[i] = table;
+            dv.neighborCost[i] = 1 + rand.nextInt(100);
+        }
+        dv.buildTableIndex();  // So it has routes
+        dv.nextFindCost = Long.MAX_VALUE;
+
+        // Data packets to route
+        floodNic = new NullLinkInterface(net, 1, outgoing);
+        flood = new FloodRouter(1, floodNic);
+        dests = new int[1024];
+        for (int i = 0; i < dests.length; i++) dests[i] = 2 + rand.nextInt(n - 1);
+        from = outgoing.get(0);
+        floodPacket = new FloodRouter.Packet(from, 0, 5, "payload");
+        packet = new AbstractDynamicRouter.Packet(from, 0, 5, "payload");
+    }
+
+    public int getNodeCount() { return t.getNodeCount(); }
+    public int getEdgeCount() { return t.getEdgeCount(); }
+
+    // The operations (each returns something, so a benchmark harness can keep it from being optimized away)
+    public Network loadText() { return load(text); }
+    public Network loadBinary() { return load(binary); }
+
+    public ShortestPathTree lsFull() {
+        ls.spt.recompute();
+        ls.findShortestPaths();
+        return ls.spt;
+    }
+
+    /** One random link cost change, then the shortest paths again **/
+    public ShortestPathTree lsIncremental() {
+        int u = 1 + rand.nextInt(t.getNodeCount());
+        Map<Integer, Long> links = new HashMap<>(ls.linkStateTable.get(u));
+        Integer v = links.keySet().iterator().next();
+        links.put(v, Math.max(1, links.get(v) + rand.nextInt(21) - 10));
+        ls.setLinkState(u, links);
+        ls.findShortestPaths();
+        return ls.spt;
+    }
+
+    public long[] dvTable() {
+        dv.buildTableIndex();
+        return dv.distance;
+    }
+
+    /** One data packet off the NIC and onto a link (returns the packets sent so far) **/
+    public long routeFlood() {
+        floodPacket.dest = dests[next++ & (dests.length - 1)];
+        floodPacket.hopCount = 5;
+        floodNic.receive(from, floodPacket);
+        flood.process();
+        return floodNic.sent;
+    }
+
+    public long routeDV() { return route(dv, dvNic); }
+    public long routeLS() { return route(ls, lsNic); }
+
+    private long route(Router router, NullLinkInterface nic) {
+        packet.dest = dests[next++ & (dests.length - 1)];
+        packet.hopCount = 5;
+        nic.receive(from, packet);
+        router.process();
+        return nic.sent;
+    }
+
+    /**
+     * A NIC to time the queues of (no links, real time mode)
+     **/
+    static NetworkInterface queue() {
+        return new NetworkInterface(new Network(), 1, new ArrayList<>(), new ArrayList<>(), QUEUE_CAPACITY);
+    }
+
+    // A ring (so every node is reachable) plus random links, each in both directions
+    static Topology generate(int n, Random rand) {
+        Topology t = new Topology(n, n * DEGREE);
+        for (int i = 0; i < n; i++) {
+            t.nsap[i] = i + 1;
+            t.probDown[i] = 0.001;
+            t.downTime[i] = 5;
+            t.downDev[i] = 2;
+        }
+        int e = 0;
+        for (int i = 0; i < n; i++) {
+            for (int d = 0; d < DEGREE / 2; d++) {
+                int j = d == 0 ? (i + 1) % n : rand.nextInt(n);
+                double speed = 1 + rand.nextInt(100);
+                t.edgeSource[e] = i + 1;
+                t.edgeDest[e] = j + 1;
+                t.meanSpeed[e] = speed;
+                t.stdSpeed[e] = speed / 10;
+                e++;
+                t.edgeSource[e] = j + 1;
+                t.edgeDest[e] = i + 1;
+                t.meanSpeed[e] = speed;
+                t.stdSpeed[e] = speed / 10;
+                e++;
+            }
+        }
+        return t;
+    }
+
+    static void writeText(Topology t, File file) throws Exception {
+        try (PrintWriter out = new PrintWriter(file)) {
+            out.println(t.getNodeCount() + " " + t.getEdgeCount());
+            for (int i = 0; i < t.getNodeCount(); i++) {
+                out.println(t.nsap[i] + " " + t.probDown[i] + " " + t.downTime[i] + " " + t.downDev[i]);
+            }
+            for (int e = 0; e < t.getEdgeCount(); e++) {
+                out.println(t.edgeSource[e] + " " + t.edgeDest[e] + " " + t.meanSpeed[e] + " " + t.stdSpeed[e]);
+            }
+        }
+    }
+
+    private static Network load(File file) {
+        try {
+            Network net = new Network();
+            net.loadNetwork(file.getPath());
+            return net;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/***************
+ * IndexedMinHeap
+ *
+ * A binary min-heap of the items 0 .. capacity-1, keyed by long, held in primitive arrays.
+ * Knows where each item sits, so an item's key can be lowered in O(log n)
+ * (as Dijkstra's algorithm needs).  Nothing is allocated once it is big enough,
+ * so one heap can be reused from run to run.
+ ***************/
+import java.util.Arrays;
+
+public class IndexedMinHeap {
+    private int[] heap;    // The items, in heap order
+    private int[] pos;     // Item -> its position in heap (-1 = not in the heap)
+    private long[] key;    // Item -> its key (only meaningful while in the heap)
+    private int size;
+
+    public IndexedMinHeap(int capacity) {
+        heap = new int[capacity];
+        pos = new int[capacity];
+        key = new long[capacity];
+        Arrays.fill(pos, -1);
+        size = 0;
+    }
+
+    /** Make room for the items 0 .. capacity-1 (keeps the current contents) **/
+    public void ensureCapacity(int capacity) {
+        if (capacity <= pos.length) return;
+        int old = pos.length;
+        heap = Arrays.copyOf(heap, capacity);
+        pos = Arrays.copyOf(pos, capacity);
+        key = Arrays.copyOf(key, capacity);
+        Arrays.fill(pos, old, capacity, -1);
+    }
+
+    /** Empty the heap (O(size), not O(capacity)) **/
+    public void clear() {
+        for (int i = 0; i < size; i++) pos[heap[i]] = -1;
+        size = 0;
+    }
+
+    public boolean isEmpty() { return size == 0; }
+    public int size() { return size; }
+    public boolean contains(int item) { return pos[item] >= 0; }
+    public long getKey(int item) { return key[item]; }
+
+    /**
+     * Add the item with the given key, or lower its key if it is already there.
+     * @returns true if the item was added or its key lowered
+     **/
+    public boolean offer(int item, long k) {
+        int i = pos[item];
+        if (i < 0) {
+            i = size++;
+            heap[i] = item;
+            pos[item] = i;
+        } else if (k >= key[item]) {
+            return false;
+        }
+        key[item] = k;
+        siftUp(i);
+        return true;
+    }
+
+    /** The item with the smallest key (without removing it) **/
+    public int peek() { return heap[0]; }
+
+    /**
+     * Remove and return the item with the smallest key
+     **/
+    public int poll() {
+        int top = heap[0];
+        pos[top] = -1;
+        size--;
+        if (size > 0) {
+            heap[0] = heap[size];
+            pos[heap[0]] = 0;
+            siftDown(0);
+        }
+        return top;
+    }
+
+    private void siftUp(int i) {
+        int item = heap[i];
+        long k = key[item];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            int p = heap[parent];
+            if (key[p] <= k) break;
+            heap[i] = p;
+            pos[p] = i;
+            i = parent;
+        }
+        heap[i] = item;
+        pos[item] = i;
+    }
+
+    private void siftDown(int i) {
+        int item = heap[i];
+        long k = key[item];
+        int half = size >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            int c = heap[child];
+            int right = child + 1;
+            if (right < size && key[heap[right]] < key[c]) {
+                child = right;
+                c = heap[child];
+            }
+            if (k <= key[c]) break;
+            heap[i] = c;
+            pos[c] = i;
+            i = child;
+        }
+        heap[i] = item;
+        pos[item] = i;
+    }
+}
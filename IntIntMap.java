@@ -0,0 +1,78 @@
+/***************
+ * IntIntMap
+ *
+ * A map from int keys to non-negative int values without boxing.
+ * Open addressing with linear probing; the table is kept at most half full.
+ * Used to turn NSAPs into dense node indexes.
+ ***************/
+import java.util.Arrays;
+
+public class IntIntMap {
+    private int[] keys;     // The key in each slot
+    private int[] values;   // The value in each slot (-1 = empty slot)
+    private int mask;       // keys.length - 1
+    private int size;
+
+    public IntIntMap(int expected) {
+        int capacity = Integer.highestOneBit(Math.max(4, expected) * 2 - 1) << 1;
+        keys = new int[capacity];
+        values = new int[capacity];
+        Arrays.fill(values, -1);
+        mask = capacity - 1;
+        size = 0;
+    }
+
+    // Spread the bits so consecutive keys do not cluster
+    private int slot(int key) {
+        int h = key * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /**
+     * @returns the value for the key or -1 if it is not in the map
+     **/
+    public int get(int key) {
+        for (int i = slot(key); values[i] >= 0; i = (i + 1) & mask) {
+            if (keys[i] == key) return values[i];
+        }
+        return -1;
+    }
+
+    /**
+     * Store a value (must be >= 0) for the key.
+     * @returns the previous value or -1 if the key is new
+     **/
+    public int put(int key, int value) {
+        if (value < 0) throw new IllegalArgumentException("Values must not be negative: " + value);
+        int i = slot(key);
+        for (; values[i] >= 0; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                int old = values[i];
+                values[i] = value;
+                return old;
+            }
+        }
+        keys[i] = key;
+        values[i] = value;
+        if (++size * 2 > keys.length) grow();
+        return -1;
+    }
+
+    public int size() { return size; }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new int[oldKeys.length * 2];
+        values = new int[oldKeys.length * 2];
+        Arrays.fill(values, -1);
+        mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] < 0) continue;
+            int j = slot(oldKeys[i]);
+            while (values[j] >= 0) j = (j + 1) & mask;
+            keys[j] = oldKeys[i];
+            values[j] = oldValues[i];
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/***************
+ * LatencyHistogram
+ *
+ * A fixed size, log bucketed histogram of (non-negative) times.  Values below 16 get
+ * a bucket each; above that, every power of two is split into 16 buckets, so any
+ * recorded value is known to within about 6% whatever its size.  Uses under 8KB no
+ * matter how many values are recorded.  Not thread safe - callers lock or merge copies.
+ ***************/
+
+public class LatencyHistogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB_COUNT = 1 << SUB_BITS;        // Buckets per power of two
+    private static final int BUCKETS = SUB_COUNT * (64 - SUB_BITS + 1);
+
+    private long[] counts;   // Number of values in each bucket
+    private long total;      // Number of values recorded
+    private long max;        // Largest value recorded
+
+    public LatencyHistogram() {
+        counts = new long[BUCKETS];
+        total = 0;
+        max = 0;
+    }
+
+    /** Record one value (negative values count as 0) **/
+    public void record(long value) {
+        if (value < 0) value = 0;
+        counts[bucketOf(value)]++;
+        total++;
+        if (value > max) max = value;
+    }
+
+    /** Add all the values recorded in another histogram to this one **/
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) counts[i] += other.counts[i];
+        total += other.total;
+        if (other.max > max) max = other.max;
+    }
+
+    public LatencyHistogram copy() {
+        LatencyHistogram res = new LatencyHistogram();
+        res.add(this);
+        return res;
+    }
+
+    public long getCount() { return total; }
+    public long getMax() { return max; }
+
+    /**
+     * The value at the given percentile (0-100).  Reports the top of the bucket it falls in
+     * (but never more than the largest value seen).  0 if nothing has been recorded.
+     **/
+    public long getPercentile(double percentile) {
+        if (total == 0) return 0;
+        long rank = (long) Math.ceil(percentile / 100.0 * total);
+        if (rank < 1) rank = 1;
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) return Math.min(upperBound(i), max);
+        }
+        return max;
+    }
+
+    // Which bucket holds the given value
+    private static int bucketOf(long value) {
+        if (value < SUB_COUNT) return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);  // >= SUB_BITS
+        int shift = exponent - SUB_BITS;
+        int sub = (int) (value >>> shift) - SUB_COUNT;          // Position within this power of two
+        return SUB_COUNT * (shift + 1) + sub;
+    }
+
+    // Largest value that falls in the given bucket
+    private static long upperBound(int bucket) {
+        if (bucket < SUB_COUNT) return bucket;
+        int shift = bucket / SUB_COUNT - 1;
+        long lower = (long) (SUB_COUNT + bucket % SUB_COUNT) << shift;
+        return lower + (1L << shift) - 1;
+    }
+}
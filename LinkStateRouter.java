@@ -8,30 +8,69 @@
 import java.util.ArrayList;
 import java.util.Map;
 import java.util.HashMap;
-import java.util.Set;
-import java.util.HashSet;
 
 public class LinkStateRouter extends AbstractDynamicRouter {
 
+    // Link state advertisements (LSAs): sent again when the costs change by more than 1/LSA_TOLERANCE,
+    // refreshed every LSA_REFRESH ms anyway, and forgotten if not refreshed within LSA_MAX_AGE ms
+    static final int LSA_TOLERANCE = 10;
+    static final long LSA_REFRESH = 30000;
+    static final long LSA_MAX_AGE = 3 * LSA_REFRESH;
+    static final long LSA_MIN_INTERVAL = 1000;  // Never advertise more often than this (ms)
+
+    /**
+     * A link state advertisement: one router's neighbor costs, as of one sequence number.
+     * Never changed once sent - every router that floods it passes on the same object.
+     **/
     public static class LinkStatePacket extends Packet {
-        Map<Integer,Long> costs; // The source node's neighbor cost information (map of <nsap, distance>)
-        Set<Integer> nodesVisited; // Set of nsaps representing the routers that have seen this packet
+        final long sequence;           // Increases with every advertisement from the same source
+        final long originTime;         // When the source sent it (network time) - its age is measured from here
+        final Map<Integer,Long> costs; // The source node's neighbor cost information (map of <nsap, distance>), read only
 
-        public LinkStatePacket(int source, int dest, Map<Integer,Long> costs) {
-            // Hop count is irrelevant because the packet automatically dies once it has visited all routers
-            super(source, dest, Integer.MAX_VALUE);
-            this.costs = costs;
-            this.nodesVisited = new HashSet<>(); // Keep track of the nodes that have been visited
+        public LinkStatePacket(int source, long sequence, long originTime, Map<Integer,Long> costs) {
+            // Hop count is irrelevant because each router floods a given advertisement only once
+            super(source, -1, Integer.MAX_VALUE);
+            this.sequence = sequence;
+            this.originTime = originTime;
+            this.costs = java.util.Collections.unmodifiableMap(new HashMap<>(costs));
         }
+
+        public long getAge(long now) { return now - originTime; }
+
+        /** Estimated size on the wire: a header (source, sequence, age) plus (neighbor, cost) per link **/
+        public int getSize() { return 20 + 12 * costs.size(); }
     }
 
     Map<Integer, Map<Integer, Long>> linkStateTable; // Stores <nsap, neighborCosts> -- every node in the network's neighbor costs 
     Map<Integer, Integer> routingTable; // Stores <dest, nextStep> -- if going from this to dest, route to nextStep
+    int[] routes;               // Dense destination index -> link index, the working copy of the forwarding table (null until first computed)
+
+    // The link state database: the newest advertisement seen from each router (by dense index)
+    long[] lsdbSequence;        // Its sequence number (-1 = none yet)
+    long[] lsdbOriginTime;      // When it was sent
+    long sequence;              // Sequence number of our own latest advertisement
+    long lastAdvertised;        // When we last sent one (-1 = never)
+    Map<Integer, Long> advertisedCosts;  // The costs in it
+    boolean costsDirty;         // A neighbor cost was measured since we last checked for changes
+    long nextAdvertise;         // When we may next advertise a change (-1 = no wake up pending)
+
+    // Control traffic counters
+    long lsasOriginated;        // Advertisements we started
+    long lsasFlooded;           // Advertisement copies sent on links (ours and passed on)
+    long lsasDuplicate;         // Advertisements dropped because we already had them (or newer)
 
     public LinkStateRouter(int nsap, NetworkInterface nic) {
         super(nsap, nic);
         linkStateTable = new HashMap<>();
         routingTable = new HashMap<>();
+        lsdbSequence = new long[nic.getNodeCount()];
+        lsdbOriginTime = new long[nic.getNodeCount()];
+        java.util.Arrays.fill(lsdbSequence, -1);
+        sequence = 0;
+        lastAdvertised = -1;
+        advertisedCosts = null;
+        costsDirty = false;
+        nextAdvertise = -1;
     }
 
     public static class Generator extends Router.Generator {
@@ -40,93 +79,123 @@ public class LinkStateRouter extends AbstractDynamicRouter {
         }
     }
 
-    // Distance/Link Pair Class (DL Pair)
-    public static class DLPair {
-        long distance;
-        int link;
+    ShortestPathTree spt; // Shortest paths from this node, kept up to date as link states arrive (created when first needed)
 
-        public DLPair (long distance, int link) {
-            this.distance = distance;
-            this.link = link;
+    // Record a node's link state (its neighbor costs), and hand any change to the shortest path tree
+    void setLinkState(int source, Map<Integer, Long> costs) {
+        linkStateTable.put(source, costs);
+        int u = nic.getNodeIndex(source);
+        if (u < 0) return;
+        if (spt == null) spt = new ShortestPathTree(nic.getNodeCount(), nic.getNodeIndex(this.nsap));
+        // Copy the costs - the tree must be able to tell what changed the next time
+        int[] targets = new int[costs.size()];
+        long[] distances = new long[costs.size()];
+        int count = 0;
+        for (Map.Entry<Integer, Long> link : costs.entrySet()) {
+            int v = nic.getNodeIndex(link.getKey());
+            if (v < 0 || count == targets.length) continue;
+            targets[count] = v;
+            distances[count] = link.getValue();
+            count++;
+        }
+        if (count < targets.length) {
+            targets = java.util.Arrays.copyOf(targets, count);
+            distances = java.util.Arrays.copyOf(distances, count);
         }
+        spt.setLinks(u, targets, distances);
     }
 
     // Calculate shortest paths from this node to every other node using Djikstra's algorithm. Populates this.routingTable
+    // Only the part of the shortest path tree affected by link state changes since the last call is recomputed.
     public void findShortestPaths() {        
-        Map<Integer, DLPair> workingTable = new HashMap<>();
-        Map<Integer, DLPair> finalTable = new HashMap<>();
-
-        // Initially, the working table just contains this
-        workingTable.put(this.nsap, new DLPair(0,-1));
-
-        // Perform Dijkstra's algorithm until the working table is empty
-        while (!workingTable.isEmpty()) {
-            // 1. Go through table find the node U with the smallest distance (d). Let l be the link it uses.
-            Map.Entry<Integer, DLPair>  min = null;
-            for (Map.Entry<Integer, DLPair> entry : workingTable.entrySet()) {
-                if (min == null || entry.getValue().distance < min.getValue().distance) {
-                    min = entry;
-                }
-            }
+        if (spt == null) spt = new ShortestPathTree(nic.getNodeCount(), nic.getNodeIndex(this.nsap));
+        spt.update();
+        int touched = spt.getTouchedCount();
+        if (touched == 0 && routes != null) return;  // Nothing changed
 
-            // Store info about the selected node, U
-            int nsapU = min.getKey();
-            DLPair infoU = min.getValue();
-            
-            // 1a. Move U from the workingTable to the finalTable
-            finalTable.put(nsapU, infoU);
-            workingTable.remove(nsapU);
-            
-            // 2. Grab U's outgoing links from the linkStateTable. Bail out if we don't have all the information we need to continue.
-            Set<Integer> linksU = null;
-            try {
-                linksU = linkStateTable.get(nsapU).keySet();
-            } catch (NullPointerException e) {
-                if (linkStateTable.isEmpty()) {
-                    System.out.println("Router " + this.nsap + ": My link state table is empty. Not ready to build a routing table.");
-                } else {
-                    System.out.println("Router " + this.nsap + ": Could not find router " + nsapU + " in my link state table. All I have is " + linkStateTable);
-                }
-                return;
+        // Update the routing table and our forwarding routes for the destinations that changed
+        if (routes == null) {
+            routes = new int[spt.getNodeCount()];
+            java.util.Arrays.fill(routes, -1);
+            publishRoutes(routes);
+        }
+        boolean changed = false;
+        for (int i = 0; i < touched; i++) {
+            int v = spt.getTouched(i);
+            int dest = nic.getNodeId(v);
+            int hop = spt.getFirstHop(v);
+            int link = -1;
+            if (!spt.isReachable(v)) {
+                this.routingTable.remove(dest);
+            } else if (hop < 0) {
+                this.routingTable.put(dest, -1);  // This node
+            } else {
+                int nextStop = nic.getNodeId(hop);
+                this.routingTable.put(dest, nextStop);
+                link = nic.getLinkIndex(nextStop);
             }
+            if (routes[v] != link) {
+                routes[v] = link;
+                changed = true;
+            }
+        }
+        spt.clearTouched();
+        if (changed) {
+            nic.routesChanged();
+            publishRoutes(routes);
+        }
+    }
 
-            // 3. Perform the relaxation process for each node V connected to U
-            for (Integer nsapV : linksU) {
-                // Get the distance from source to V when going through U
-                long distanceV = linkStateTable.get(nsapU).get(nsapV) + infoU.distance;
-                
-                // 4. If that distance is better than the distance currently stored in workingTable, update the workingTable with that distance and link l (also check for nulls)
-                if (!finalTable.containsKey(nsapV)) {
-                    DLPair currentInfoV = workingTable.get(nsapV);
-                    if (currentInfoV == null || distanceV < currentInfoV.distance) {
-                        // We know that going through U is a better way to get to V than what we have currently, so update the working table.
-                        workingTable.put(nsapV, new DLPair(distanceV, infoU.link == -1 ? nsapV : infoU.link)); // If the link is -1, use ourself instead.
-                    }
-                }
+    // Flood an advertisement on every link except the one it came in on
+    private void flood(LinkStatePacket p, int fromLink) {
+        int size = nic.getOutgoingLinks().size();
+        for (int i = 0; i < size; i++) {
+            if (i != fromLink && nic.sendOnLink(i, p)) {
+                lsasFlooded++;
+                nic.countControlPacket(p.getSize());
             }
         }
+    }
 
-        // Re-build the routing table using the results of the search we just did
-        this.routingTable.clear();
-        for (Map.Entry<Integer, DLPair> entry : finalTable.entrySet()) {
-            Integer dest = entry.getKey();
-            Integer link = entry.getValue().link;
-            this.routingTable.put(dest, link);
+    /**
+     * Add an advertisement to the link state database, unless we already have it (or a newer one).
+     * @returns true if it was new
+     **/
+    private boolean install(LinkStatePacket p) {
+        int u = nic.getNodeIndex(p.source);
+        if (u < 0 || p.sequence <= lsdbSequence[u] || p.getAge(nic.getTime()) > LSA_MAX_AGE) {
+            lsasDuplicate++;
+            return false;
         }
+        lsdbSequence[u] = p.sequence;
+        lsdbOriginTime[u] = p.originTime;
+        setLinkState(p.source, p.costs);
+        return true;
     }
 
-    // Flood a packet to every other LinkStateRouter in the network
-    private void flood(LinkStatePacket p) {
-        ArrayList<Integer> outLinks = nic.getOutgoingLinks();
-        int size = outLinks.size();
-        for (int i = 0; i < size; i++) {
-            if (!p.nodesVisited.contains(outLinks.get(i))) {
-                // This packet hasn't reached this node yet - so send it along!
-                nic.sendOnLink(i, p);
+    // Forget advertisements that have not been refreshed in time (their router is presumably gone)
+    private void expireLinkStates() {
+        long now = nic.getTime();
+        for (int u = 0; u < lsdbSequence.length; u++) {
+            if (lsdbSequence[u] >= 0 && now - lsdbOriginTime[u] > LSA_MAX_AGE && linkStateTable.containsKey(nic.getNodeId(u))) {
+                int source = nic.getNodeId(u);
+                debug.println(4, () -> "Router " + this.nsap + ": Link state for " + source + " expired");
+                linkStateTable.remove(source);
+                if (spt != null) spt.setLinks(u, new int[0], new long[0]);
             }
         }
     }
 
+    // True if the costs differ enough from what we last advertised to advertise again
+    private boolean costsChanged(Map<Integer, Long> costs) {
+        if (advertisedCosts == null || !advertisedCosts.keySet().equals(costs.keySet())) return true;
+        for (Map.Entry<Integer, Long> entry : costs.entrySet()) {
+            long before = advertisedCosts.get(entry.getKey());
+            if (Math.abs(entry.getValue() - before) > before / LSA_TOLERANCE) return true;
+        }
+        return false;
+    }
+
     // Print out the network (for debugging)
     private void printNetwork() {
         System.out.printf("Network for %d:\n", this.nsap);
@@ -145,38 +214,74 @@ public class LinkStateRouter extends AbstractDynamicRouter {
     }
 
     @Override
-    protected void route(Packet p) {
-        if (p instanceof LinkStatePacket) {
-            // We received a link state packet. These are handled differently from regular data packets
-            debug.println(4, "Received a LinkStatePacket");
+    protected boolean receiveControl(Object data, int originator) {
+        if (!(data instanceof LinkStatePacket)) return false;
+        // We received a link state packet. These are handled differently from regular data packets
+        debug.println(4, "Received a LinkStatePacket");
+        LinkStatePacket packet = (LinkStatePacket) data;
+        if (install(packet)) {
+            // New to us - pass it on (but not back where it came from), and update our routes
+            this.flood(packet, nic.getLinkIndex(originator));
+            findShortestPaths();
+            debug.println(5, () -> "Packet source: " + packet.source + " sequence: " + packet.sequence);
+            debug.println(5, () -> "Packet data (costs): " + packet.costs.toString());
+        }
+        return true;
+    }
 
-            LinkStatePacket packet = (LinkStatePacket) p;
-            packet.nodesVisited.add(this.nsap); // Update packet to say it has visited this router
-            this.linkStateTable.put(packet.source, packet.costs); // Get link state information from the packet
-            this.flood(packet); // Continue flood routing the packet
+    @Override
+    protected void route(Packet p) {
+        // This is a normal data packet
+        debug.println(4, "Received a Packet");
 
-            debug.println(5, "Packet source: " + packet.source);
-            debug.println(5, "Packet data (costs): " + packet.costs.toString());
+        if (p.dest == this.nsap) {
+            // Packet has arrived at its destination, so report that it was received successfully!
+            nic.trackArrivals(p.payload);
         } else {
-            // This is a normal data packet
-            debug.println(4, "Received a Packet");
+            // Lookup the link to the next stop in the forwarding table and send the packet there
+            if (!forward(p)) {
+                // Destination is not in the routing table yet. Drop the packet.
+                debug.println(4, () -> "Router " + this.nsap + ": Router " + p.dest + " is not in my routing table yet. All I have is " + routingTable.toString());
+            }
+        }
+    }
 
-            if (p.dest == this.nsap) {
-                // Packet has arrived at its destination, so report that it was received successfully!
-                nic.trackArrivals(p.payload);
-            } else {
-                // Lookup the next stop from routing table and send the packet there
-                Integer nextStop = routingTable.get(p.dest);
-                if (nextStop != null) {
-                    int linkIndex = nic.getOutgoingLinks().indexOf(nextStop);
-                    nic.sendOnLink(linkIndex, p);
-                } else {
-                    // Destination is not in the routing table yet. Drop the packet.
-                    debug.println(4, "Router " + this.nsap + ": Router " + p.dest + " is not in my routing table yet. All I have is " + routingTable.toString());
+    @Override
+    protected void neighborCostChanged(int neighbor, long cost) {
+        costsDirty = true;
+    }
+
+    @Override
+    protected boolean process() {
+        boolean process = super.process();
+        // Advertise measured cost changes soon after they come in (but no more than once per LSA_MIN_INTERVAL)
+        if (costsDirty) {
+            long now = nic.getTime();
+            if (now - lastAdvertised >= LSA_MIN_INTERVAL) {
+                costsDirty = false;
+                nextAdvertise = -1;
+                if (costsChanged(this.neighborCosts)) {
+                    advertise(now);
+                    findShortestPaths();
                 }
-                
+            } else if (nextAdvertise < 0) {
+                nextAdvertise = lastAdvertised + LSA_MIN_INTERVAL;
+                nic.wakeAt(nextAdvertise);
             }
         }
+        return process;
+    }
+
+    // Send out a new advertisement of our current neighbor costs
+    private void advertise(long now) {
+        sequence++;
+        LinkStatePacket lsa = new LinkStatePacket(this.nsap, sequence, now, this.neighborCosts);
+        lastAdvertised = now;
+        advertisedCosts = lsa.costs;
+        lsasOriginated++;
+        // Add our own neighbors to the link state table, in addition to the ones we get from other routers
+        install(lsa);
+        flood(lsa, -1);
     }
 
     @Override
@@ -184,23 +289,19 @@ public class LinkStateRouter extends AbstractDynamicRouter {
         // For every neighbor of the curent router:
         ArrayList<Integer> neighbors = nic.getOutgoingLinks();
         for (int i = 0; i < neighbors.size(); i++) {
-            int neighborNsap = neighbors.get(i);
-
             // Send a ping to the neighbor (expecting a "pong" back)
-            PingPacket pingPacket = new PingPacket(super.nsap, neighborNsap, 1);
-            nic.sendOnLink(i, pingPacket); // Send out the ping packet
-
-            // Send link state to the neighbor (to flood across the network)
-            LinkStatePacket linkStatePacket = new LinkStatePacket(super.nsap, neighborNsap, super.neighborCosts);
-            linkStatePacket.nodesVisited.add(this.nsap);
-            nic.sendOnLink(i, linkStatePacket); // Send out link state packet
+            sendPing(i, neighbors.get(i));
         }
 
-        // Add our own neighbors to the link state table, in addition to the ones we get from other routers
-        linkStateTable.put(this.nsap, this.neighborCosts);
+        // Advertise our link state (to flood across the network) - only if it changed, or is due for a refresh
+        long now = nic.getTime();
+        if (costsChanged(this.neighborCosts) || now - lastAdvertised >= LSA_REFRESH) {
+            advertise(now);
+        }
+        expireLinkStates();
 
         // (Re)build the routing table
         findShortestPaths();
     }
 
-}
\ No newline at end of file
+}
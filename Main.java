@@ -9,6 +9,11 @@ public class Main {
         Debug.getInstance().setLevel(1);  // Set debug level for more verbose output (higher = more verbose)
         
         Network net = new Network();
+        if (args.length > 1 && args[1].equals("-des")) {
+            net.setDiscreteEvent(true);  // Run in virtual time rather than real time
+        } else if (args.length > 2 && args[1].equals("-parallel")) {
+            net.setParallel(Integer.parseInt(args[2]));  // Virtual time, split across threads
+        }
         try {
             net.loadNetwork(networkFile);
         } catch (Exception e) {
@@ -26,6 +31,7 @@ public class Main {
             System.err.println("Error running the network.");
             System.err.println(e.getMessage());
         }
+        Debug.getInstance().flush();
         System.exit(0);  // Finished, kill all the threads!
     }
 }
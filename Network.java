@@ -6,36 +6,44 @@
  ***************/
 import java.io.PrintWriter;
 import java.io.PrintStream;
-import java.io.FileReader;
-import java.io.BufferedReader;
-import java.util.HashMap;
 import java.util.ArrayList;
-import java.util.List;
-import java.util.Random;
+import java.util.ArrayDeque;
+import java.util.SplittableRandom;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.BiConsumer;
 
 public class Network {
+    /**
+     * A view of one node (for display) - the network itself keeps its nodes and
+     * links in flat arrays (See the graph core below).
+     **/
     public class Node {
+        int index;  // The dense index of this node
         int nsap;  // The NSAP (ID) of this node
         double probDown;   // Probability that node goes down every second (0 = never, 1 = always)
         double downTime;   // Average time node stays down (in seconds)
         double downDev;    // Standard deviation for downtime
-        Router r;  // The router associated with this node
-        double remainingDown;  // If >0, node is down... decrements every second until 0 and back up.
         ArrayList<Connection> outgoingLinks;   // An ArrayList of Connections (the outgoing links in the network from this node)
         ArrayList<Connection> incomingLinks;   // An ArrayList of Connections (the incoming links in the network to this node)
         
-        public Node(int nsap, double probDown, double downTime, double downDev, Router r) {
-            this.nsap = nsap;
-            this.probDown = probDown;
-            this.downTime = downTime;
-            this.downDev = downDev;
-            this.r = r;
-            this.remainingDown = 0;
-            this.outgoingLinks = new ArrayList<Connection>();
-            this.incomingLinks = new ArrayList<Connection>();
+        Node(int index) {
+            this.index = index;
+            this.nsap = nodeNsap[index];
+            this.probDown = nodeProbDown[index];
+            this.downTime = nodeDownTime[index];
+            this.downDev = nodeDownDev[index];
+            this.outgoingLinks = new ArrayList<Connection>(outOffsets[index+1] - outOffsets[index]);
+            this.incomingLinks = new ArrayList<Connection>(inOffsets[index+1] - inOffsets[index]);
         }
 
+        /** The router associated with this node (null until the routers are created) **/
+        public Router getRouter() { return routers == null ? null : routers[index]; }
+        public boolean isDown() { return nodeDown.get(index) != 0; }
+
         public String toString() {
             StringBuilder res = new StringBuilder();
             res.append("Node ");
@@ -55,7 +63,11 @@ public class Network {
         }
     }
 
+    /**
+     * A view of one link (for display)
+     **/
     public class Connection {
+        int edge;          // The index of this link in the outgoing edge arrays
         Node source;       // The source of this link
         Node destination;  // The destination of this link
 
@@ -63,86 +75,298 @@ public class Network {
         double meanSpeed;      // The "average" speed for this link
         double stdSpeed;     // The standard deviation of the speed for this link
 
-        public Connection(Node source, Node destination, double meanSpeed, double stdSpeed) {
+        Connection(int edge, Node source, Node destination) {
+            this.edge = edge;
             this.source = source;
             this.destination = destination;
-            this.meanSpeed = meanSpeed;
-            this.stdSpeed = stdSpeed;
-        }
-
-        public synchronized boolean sendOnLink(Object packet) {
-            // Register the start of transmission on this link - for visualization
-            // TBD
-            
-            // Sleep for the average speed for this link -- simulating a delay
-            try {
-                long delay = Math.round(rand.nextGaussian()*stdSpeed + meanSpeed);
-                if (delay > 0) 
-                    Thread.sleep(delay);
-
-                // Inform the receiving router of the new incoming packet - place it on its receiving queue
-                debug.println(5, "Transmitting on link from " + source.nsap + " to " + destination.nsap);
-                destination.r.nic.receive(source.nsap, packet);
-                return true;  // Success
-            } catch (InterruptedException e) {
-                // We should not be interrupted while trying to transmit.  But if so, it fails to transmit!
-                return false;
+            this.meanSpeed = outMean[edge];
+            this.stdSpeed = outStd[edge];
+        }
+
+        public boolean sendOnLink(Object packet) {
+            return sendOnEdge(source.index, edge, packet);
+        }
+    }
+
+    /*
+     * The graph core, in compressed sparse row form.  Node i's outgoing links are
+     * edges outOffsets[i] .. outOffsets[i+1]-1 (in the order the file lists them,
+     * so a link's position matches the NIC's link index).  Its incoming links are
+     * entries inOffsets[i] .. inOffsets[i+1]-1 of the incoming arrays.
+     */
+    private int nodeCount;
+    private IntIntMap nodeIndex;     // NSAP -> dense index
+    private int[] nodeNsap;          // Dense index -> NSAP
+    private double[] nodeProbDown;   // Probability that node goes down every second
+    private double[] nodeDownTime;   // Average time node stays down (in seconds)
+    private double[] nodeDownDev;    // Standard deviation for downtime
+    private AtomicIntegerArray nodeDown;  // 1 if the node is currently down
+    private Router[] routers;        // The router for each node (null until created)
+    private int[] outOffsets;        // Start of each node's outgoing edges (nodeCount+1 entries)
+    private int[] outTargets;        // Destination (dense index) of each edge
+    private double[] outMean;        // The "average" speed of each edge
+    private double[] outStd;         // The standard deviation of the speed of each edge
+    private long[] outMinDelay;      // The shortest delay each edge can have (see LOOKAHEAD_SIGMAS)
+    private int[] inOffsets;         // Start of each node's incoming entries (nodeCount+1 entries)
+    private int[] inSources;         // Source (dense index) of each incoming entry
+    private int[] inEdges;           // The outgoing edge each incoming entry refers to
+
+    // Packets crossing each edge.  Allocated on first use, guarded by one of a few striped locks.
+    private static final int LINK_LOCKS = 64;
+    private Object[] linkLocks;
+    private ArrayDeque<Object>[] inFlight;  // Packets currently crossing each edge (oldest first)
+    private long[] lastArrival;       // When the most recently sent packet arrives - later packets can't overtake it
+
+    private ArrayList<Node> view;     // The Node/Connection view (built when first asked for)
+
+    /**
+     * Put a packet on a link.  Returns right away - the packet is handed to the
+     * destination once the (random) link delay has passed.  Packets on the same
+     * link always arrive in the order they were sent.
+     **/
+    private boolean sendOnEdge(int source, int edge, Object packet) {
+        long arrival;
+        synchronized (linkLocks[edge & (LINK_LOCKS - 1)]) {
+            SplittableRandom r = linkRandom[edge];
+            if (r == null) {
+                r = stream(LINK_STREAMS, edge);
+                linkRandom[edge] = r;
             }
+            long delay = Math.max(Math.round(nextGaussian(r)*outStd[edge] + outMean[edge]), outMinDelay[edge]);
+            long now = currentTime();
+            arrival = Math.max(now + delay, lastArrival[edge]);
+            lastArrival[edge] = arrival;
+            if (inFlight[edge] == null) inFlight[edge] = new ArrayDeque<>();
+            inFlight[edge].add(packet);
+        }
+        if (psim != null) psim.schedule(outTargets[edge], arrival, ParallelSimulator.DELIVERY, edge, () -> deliverNext(source, edge));
+        else schedule(arrival, ParallelSimulator.DELIVERY, edge, () -> deliverNext(source, edge));
+        return true;  // Success
+    }
+
+    /**
+     * A delay has expired: hand over the oldest packet on the link.
+     * (One call per packet sent, so even if timers fire slightly out of order the link stays FIFO.)
+     **/
+    private void deliverNext(int source, int edge) {
+        Object packet;
+        synchronized (linkLocks[edge & (LINK_LOCKS - 1)]) {
+            packet = inFlight[edge].poll();
         }
+        if (packet != null) deliver(source, edge, packet);
+    }
+
+    private void deliver(int source, int edge, Object packet) {
+        int destination = outTargets[edge];
+        if (nodeDown.get(destination) != 0) {
+            debug.println(5, () -> "Link to " + nodeNsap[destination] + " lost a packet.  Destination is down.");
+            return;
+        }
+        // Inform the receiving router of the new incoming packet - place it on its receiving queue
+        debug.println(5, () -> "Transmitting on link from " + nodeNsap[source] + " to " + nodeNsap[destination]);
+        routers[destination].nic.receive(nodeNsap[source], packet);
     }
 
     /**
      * The total stats for the given network.
+     * Everything is kept in a fixed amount of memory, however long the network runs:
+     * counters, a latency histogram, sliding window rates, and a bounded table of
+     * packets still in flight (too old or pushed out of the table = presumed lost).
+     *
+     * Router threads record arrivals into one of several striped cells (picked by
+     * thread) so they rarely contend; getStats() merges the cells into a snapshot.
      **/
     public class Stat {
-        private int packetsReceived;
-        private int duplicatePackets;
+        private static final int IN_FLIGHT_SLOTS = 1 << 16;  // Packets tracked at once (power of two)
+        private static final long LOSS_TIMEOUT = 10000;      // A packet not arrived after this long (ms) is presumed lost
+        private static final int RATE_WINDOW = 10;           // Seconds covered by the send/receive rates
+        private static final double EWMA_TIME_CONSTANT = 1000.0;  // ms for an arrival's weight in the EWMA to drop by 1/e
+
+        // One stripe of the arrival statistics - only locked by the threads that map to it
+        private class Cell {
+            long received;            // New arrivals recorded here
+            double timeSum;           // Total time taken of those arrivals
+            double ewmaSum;           // Time taken, weighted by how recent (decayed to ewmaTime)
+            double ewmaWeight;        // Sum of the weights
+            long ewmaTime;            // Time the weights were last decayed to
+            LatencyHistogram latencies = new LatencyHistogram();
+            RateWindow sendRate = new RateWindow(RATE_WINDOW);
+            RateWindow receiveRate = new RateWindow(RATE_WINDOW);
+
+            void decayTo(long now) {
+                if (now > ewmaTime) {
+                    double decay = Math.exp(-(now - ewmaTime)/EWMA_TIME_CONSTANT);
+                    ewmaSum *= decay;
+                    ewmaWeight *= decay;
+                    ewmaTime = now;
+                }
+            }
+        }
+
+        private Cell[] cells;          // The stripes (null in a snapshot)
+        private LongAdder duplicates;  // Duplicate arrivals (null in a snapshot)
+        private LongAdder sent;        // Packets sent (null in a snapshot)
+        private LongAdder lateArrivals;  // Arrivals of packets already presumed lost (null in a snapshot)
+
+        // The in-flight table: slot (packetNumber % size) holds the packet number and start time, 0 = empty.
+        // Only the packet generator adds and expires (under flightLock); arrivals just clear their slot.
+        private AtomicIntegerArray flightIds;
+        private long[] flightStart;
+        private int oldestId;          // Packet numbers below this have all arrived or expired
+        private int newestId;          // The last packet number added
+        private long expired;          // Packets expired or pushed out of the table
+        private Object flightLock;
+
+        // Merged values (snapshots only)
+        private long packetsSent;
+        private long packetsReceived;
+        private long duplicatePackets;
+        private long lostPackets;      // Presumed lost (may come down again if a packet turns up late)
         private double meanTimeTaken;  // average time taken per packet
-        private double ewmaTimeTaken;  // exponentially weighted moving average of time taken
-        private double alpha;          // The exponentially weighting decrease
-        private ArrayList<PacketStat> packetsSent;  // Used to track the number of packets transmitted
+        private double ewmaTimeTaken;  // exponentially weighted moving average of time taken (decaying with time)
+        private LatencyHistogram latencies;  // Time taken for each new arrival
+        private RateWindow sendRate;         // Packets sent in the last few seconds
+        private RateWindow receiveRate;      // Packets received in the last few seconds
+        private long snapshotTime;           // Network time the snapshot was taken (for the rates)
+
         public Stat() {
-            packetsReceived = 0;
-            duplicatePackets = 0;
-            meanTimeTaken = 0;
-            ewmaTimeTaken = 0;
-            alpha = 0.1;
-            packetsSent = new ArrayList<>();
+            int stripes = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 4 - 1) << 1;
+            cells = new Cell[stripes];
+            for (int i = 0; i < stripes; i++) cells[i] = new Cell();
+            duplicates = new LongAdder();
+            sent = new LongAdder();
+            lateArrivals = new LongAdder();
+            flightIds = new AtomicIntegerArray(IN_FLIGHT_SLOTS);
+            flightStart = new long[IN_FLIGHT_SLOTS];
+            oldestId = 1;
+            newestId = 0;
+            expired = 0;
+            flightLock = new Object();
         }
 
         /**
-         * Clone/copy other stat to this new Stat
+         * Snapshot: merge the stripes of the other (live) stat into this new Stat
          **/
         private Stat(Stat other) {
-            this.packetsReceived = other.packetsReceived;
-            this.duplicatePackets = other.duplicatePackets;
-            this.meanTimeTaken = other.meanTimeTaken;
-            this.ewmaTimeTaken = other.ewmaTimeTaken;
-            this.alpha = other.alpha;
-            this.packetsSent = other.packetsSent;  // WARNING: NOT A DEEP COPY!!!
+            long now = currentTime();
+            other.expireInFlight(now);
+            this.snapshotTime = now;
+            this.latencies = new LatencyHistogram();
+            this.sendRate = new RateWindow(RATE_WINDOW);
+            this.receiveRate = new RateWindow(RATE_WINDOW);
+            double timeSum = 0, ewmaSum = 0, ewmaWeight = 0;
+            for (Cell c: other.cells) {
+                synchronized (c) {
+                    c.decayTo(now);
+                    this.packetsReceived += c.received;
+                    timeSum += c.timeSum;
+                    ewmaSum += c.ewmaSum;
+                    ewmaWeight += c.ewmaWeight;
+                    this.latencies.add(c.latencies);
+                    this.sendRate.add(c.sendRate);
+                    this.receiveRate.add(c.receiveRate);
+                }
+            }
+            this.meanTimeTaken = packetsReceived > 0 ? timeSum/packetsReceived : 0;
+            this.ewmaTimeTaken = ewmaWeight > 0 ? ewmaSum/ewmaWeight : 0;
+            this.duplicatePackets = other.duplicates.sum();
+            this.packetsSent = other.sent.sum();
+            synchronized (other.flightLock) {
+                this.lostPackets = other.expired - other.lateArrivals.sum();
+            }
         }
 
         @Override
-        protected synchronized Object clone() {
-            return new Stat(this);
+        protected Object clone() {
+            return cells == null ? this : new Stat(this);  // Snapshots never change
+        }
+
+        // The stripe for the calling thread
+        private Cell cell() {
+            long id = Thread.currentThread().getId();
+            return cells[(int) (id ^ (id >>> 16)) & (cells.length - 1)];
+        }
+
+        // Getters read the merged values, so merge first if this is the live stat
+        private Stat merged() {
+            return cells == null ? this : new Stat(this);
+        }
+
+        public void add(PacketStat p) {
+            sent.increment();
+            Cell c = cell();
+            synchronized (c) {
+                c.sendRate.add(p.startTime, 1);
+            }
+            synchronized (flightLock) {
+                expireInFlight(p.startTime);
+                int slot = p.packetNumber & (IN_FLIGHT_SLOTS - 1);
+                newestId = Math.max(newestId, p.packetNumber);  // Traffic threads may add slightly out of order
+                flightStart[slot] = p.startTime;
+                if (flightIds.getAndSet(slot, p.packetNumber) != 0) {
+                    // Table is full this far back - the old packet is presumed lost
+                    expired++;
+                }
+            }
+        }
+
+        /**
+         * Expire packets that have been in flight too long (oldest first, so amortized O(1))
+         **/
+        private void expireInFlight(long now) {
+            synchronized (flightLock) {
+                while (oldestId <= newestId) {
+                    int slot = oldestId & (IN_FLIGHT_SLOTS - 1);
+                    if (flightIds.get(slot) == oldestId) {
+                        if (now - flightStart[slot] < LOSS_TIMEOUT) return;  // Everything newer is younger still
+                        if (flightIds.compareAndSet(slot, oldestId, 0)) expired++;  // (Unless it just arrived)
+                    }
+                    oldestId++;
+                }
+            }
+        }
+
+        public void increaseDuplicatePackets() { duplicates.increment(); }
+
+        public void updateTimeTakenForNewArrival(int packetNumber, long tt) {
+            if (!flightIds.compareAndSet(packetNumber & (IN_FLIGHT_SLOTS - 1), packetNumber, 0)) {
+                lateArrivals.increment();  // Was presumed lost, but made it after all
+            }
+            long now = currentTime();
+            Cell c = cell();
+            synchronized (c) {
+                c.received++;
+                c.timeSum += tt;
+                c.decayTo(now);
+                c.ewmaSum += tt;
+                c.ewmaWeight += 1;
+                c.latencies.record(tt);
+                c.receiveRate.add(now, 1);
+            }
         }
 
-        public synchronized void add(PacketStat p) { packetsSent.add(p); }
-        public synchronized int getTotalPacketsSent() { return packetsSent.size(); }
-        public synchronized int getPacketsReceived() { return packetsReceived; }
-        public synchronized void increaseDuplicatePackets() { duplicatePackets++; }
-        public synchronized int getDuplicatePackets() { return duplicatePackets; }
-        public void updateTimeTakenForNewArrival(long tt) {
-            packetsReceived++;
-            meanTimeTaken = meanTimeTaken + (tt - meanTimeTaken)/packetsReceived;  // Update the average: [att*(n-1) + tt]/n
-            ewmaTimeTaken = ewmaTimeTaken*(1-alpha) + tt*alpha;
+        public long getTotalPacketsSent() { return merged().packetsSent; }
+        public long getPacketsReceived() { return merged().packetsReceived; }
+        public long getDuplicatePackets() { return merged().duplicatePackets; }
+        public long getLostPackets() { return merged().lostPackets; }
+        public long getPacketsInFlight() {
+            Stat m = merged();
+            return m.packetsSent - m.packetsReceived - m.lostPackets;
         }
-        public double getEWMATimeTaken() { return ewmaTimeTaken; }
-        public double getMeanTimeTaken() { return meanTimeTaken; }
+        public double getEWMATimeTaken() { return merged().ewmaTimeTaken; }
+        public double getMeanTimeTaken() { return merged().meanTimeTaken; }
+
+        /** Time taken (ms) at the given percentile (e.g. 50, 90, 99, 99.9) of arrivals **/
+        public long getTimeTakenPercentile(double percentile) { return merged().latencies.getPercentile(percentile); }
+        public long getMaxTimeTaken() { return merged().latencies.getMax(); }
+
+        /** Packets sent/received per second over the last few seconds (as of the snapshot) **/
+        public double getSendRate() { Stat m = merged(); return m.sendRate.getRate(m.snapshotTime); }
+        public double getReceiveRate() { Stat m = merged(); return m.receiveRate.getRate(m.snapshotTime); }
     }
 
     // Statistics to track for a SINGLE packet
-    private int packetNumberCount = 1;
+    private AtomicInteger packetNumberCount = new AtomicInteger(1);  // (Several traffic threads may number packets)
     private class PacketStat {
         int source;
         int dest;
@@ -153,9 +377,8 @@ public class Network {
         public PacketStat(int source, int dest) {
             this.source = source;
             this.dest = dest;
-            this.packetNumber = packetNumberCount;
-            packetNumberCount++;
-            this.startTime = System.currentTimeMillis();
+            this.packetNumber = packetNumberCount.getAndIncrement();
+            this.startTime = currentTime();
             this.timeTaken = -1;
             this.arrivals = 0;
         }
@@ -165,114 +388,447 @@ public class Network {
         }
     }
     
-    private Random rand;  // Random number generator for randomizing behaviour
-    private HashMap<Integer, Node> nodes;
+    // Randomness: independent streams per link (delays), per node (failures) and per traffic source,
+    // all derived from one master seed - so a seed repeats the same sequences, and no two threads share a stream
+    private static final long LINK_STREAMS = 1;
+    private static final long NODE_STREAMS = 2;
+    private static final long TRAFFIC_STREAMS = 3;
+
+    // Link delays are cut off this many standard deviations below the mean (and at 0), so every link
+    // has a minimum delay - the parallel engine's lookahead.  Cuts off about 0.1% of the distribution.
+    static final double LOOKAHEAD_SIGMAS = 3;
+    // Routing has converged once no route has changed for this long (ms) - see getConvergenceTime
+    static final long CONVERGENCE_WINDOW = 2000;
+    private long seed;                      // The master seed
+    private SplittableRandom[] linkRandom;  // Per edge, created on first use (only its source router sends on it)
+    private SplittableRandom[] nodeRandom;  // Per node, created on first use (only the failure timer uses them)
+    private SplittableRandom rand;          // runNetwork's traffic
     private Debug debug;
     private Stat stats;  // Stats for this network
+    private Simulator sim;  // The discrete event engine (null means run in real time)
+    private ParallelSimulator psim;  // The parallel discrete event engine (used instead of sim when set)
+    private TimingWheel timers;  // Real time mode: link delays, router wake ups and failure timers
+    private Thread timerThread;  // Real time mode: drives the timers
+    private LongAdder controlPackets;  // Routing protocol packets sent (table updates, link states)
+    private LongAdder controlBytes;    // Their (estimated) size
+    private long routersStarted;       // When the routers were created (-1 = not yet)
+    private long lastRouteChange;      // When any router last changed a route (-1 = never)
+    private long routesSettled;        // The last route change before the first quiet window (-1 = none yet)
     
     public Network() {
-        nodes = new HashMap<>();
-        rand = new Random();
-        debug = Debug.getInstance();
+        this(Debug.getInstance());
+    }
+
+    /**
+     * A network with its own debugging output (so it can run alongside other networks)
+     **/
+    public Network(Debug debug) {
+        nodeCount = 0;
+        nodeIndex = new IntIntMap(16);
+        outOffsets = new int[1];
+        inOffsets = new int[1];
+        view = null;
+        setSeed(ThreadLocalRandom.current().nextLong());
+        this.debug = debug;
         stats = new Stat();
+        sim = null;
+        psim = null;
+        timers = null;
+        timerThread = null;
+        controlPackets = new LongAdder();
+        controlBytes = new LongAdder();
+        routersStarted = -1;
+        lastRouteChange = -1;
+        routesSettled = -1;
+    }
+
+    /**
+     * Run this network as a discrete event simulation (virtual time) instead of in real time.
+     * Must be chosen before the routers are created.
+     **/
+    public void setDiscreteEvent(boolean flag) {
+        sim = flag ? new Simulator(debug) : null;
+        psim = null;
+    }
+    public boolean isDiscreteEvent() { return sim != null || psim != null; }
+
+    /**
+     * Run this network as a discrete event simulation split across the given number of threads
+     * (see ParallelSimulator).  Gives the same results for any number of threads - 1 runs it sequentially.
+     * Must be chosen before the routers are created, and the routers must be steppable.
+     **/
+    public void setParallel(int threads) {
+        psim = new ParallelSimulator(threads, debug);
+        sim = null;
+    }
+    public ParallelSimulator getParallelSimulator() { return psim; }
+
+    /** Where this network's debugging output goes **/
+    public Debug getDebug() { return debug; }
+
+    /**
+     * Seed the random choices (link delays, failures, traffic) so a discrete event run can be repeated.
+     * Every stream is derived from this one seed.
+     **/
+    public void setSeed(long seed) {
+        this.seed = seed;
+        if (linkRandom != null) java.util.Arrays.fill(linkRandom, null);
+        if (nodeRandom != null) java.util.Arrays.fill(nodeRandom, null);
+        rand = getTrafficStream(0);
+    }
+    public long getSeed() { return seed; }
+
+    /**
+     * A new random stream for a traffic source (source 0 is runNetwork's own traffic).
+     * The same seed and source always give the same stream.
+     **/
+    public SplittableRandom getTrafficStream(int source) { return stream(TRAFFIC_STREAMS, source); }
+
+    // The stream for one link/node/source: the master seed and the stream's kind and index, well mixed
+    private SplittableRandom stream(long kind, long index) {
+        return new SplittableRandom(mix(mix(seed + kind * 0x9E3779B97F4A7C15L) + index));
+    }
+
+    // Stafford's 64 bit mix (as SplittableRandom uses) - nearby inputs give unrelated outputs
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * A normally distributed value (mean 0, standard deviation 1) by the polar method.
+     * SplittableRandom only has nextGaussian from Java 17 on.
+     **/
+    static double nextGaussian(SplittableRandom r) {
+        double v1, v2, s;
+        do {
+            v1 = 2 * r.nextDouble() - 1;
+            v2 = 2 * r.nextDouble() - 1;
+            s = v1 * v1 + v2 * v2;
+        } while (s >= 1 || s == 0);
+        return v1 * Math.sqrt(-2 * Math.log(s) / s);
+    }
+    Simulator getSimulator() { return sim; }
+
+    /**
+     * The current network time in ms - virtual time in discrete event mode, wall-clock otherwise
+     **/
+    public long currentTime() {
+        if (psim != null) return psim.now();
+        return sim != null ? sim.now() : System.currentTimeMillis();
+    }
+
+    /**
+     * Run the given action at the given network time.
+     * Goes on the simulator's event queue in discrete event mode, on the timing wheel otherwise.
+     **/
+    void schedule(long time, Runnable action) {
+        if (sim != null) sim.schedule(time, action);
+        else timers.schedule(time, action);
+    }
+
+    /**
+     * As above, for an event of the given kind and id (see ParallelSimulator) - in discrete
+     * event mode, events due at the same time then fire in the same order on every run.
+     **/
+    private void schedule(long time, int kind, int id, Runnable action) {
+        if (sim != null) sim.schedule(time, kind, id, action);
+        else timers.schedule(time, action);
+    }
+
+    /**
+     * Wake up the router of the given node at the given network time.
+     * (The simulators have to know the node: wake ups at the same time fire in node order,
+     * and the parallel engine runs each one in its node's partition.)
+     **/
+    void scheduleWake(int nsap, long time, Runnable wake) {
+        int node = nodeIndex.get(nsap);
+        if (psim != null) psim.schedule(node, time, ParallelSimulator.WAKE, node, wake);
+        else schedule(time, ParallelSimulator.WAKE, node, wake);
+    }
+
+    /**
+     * Real time mode: the timing wheel health counters (null in discrete event mode)
+     **/
+    public TimingWheel getTimers() { return timers; }
+
+    /**
+     * Real time mode: start the timing wheel and one thread to turn it every ms.
+     * Firing only hands packets to queues or wakes routers, so one thread is plenty.
+     **/
+    private void startTimers() {
+        timers = new TimingWheel(System.currentTimeMillis(), 1);
+        timerThread = new Thread("NetworkTimer") {
+                public void run() {
+                    while (true) {
+                        timers.advanceTo(System.currentTimeMillis());
+                        try { Thread.sleep(1); } catch (InterruptedException e) { return; }  // shutdown()
+                    }
+                }
+            };
+        timerThread.setDaemon(true);
+        timerThread.start();
     }
 
     /**
-     * Load a network from the given text file - using the described format
-     * (See testGraph.txt)
+     * Let the given number of ms of network time pass.
+     * In discrete event mode this fires every event due in that window instead of sleeping.
+     **/
+    private void pause(long length) throws InterruptedException {
+        if (psim != null) psim.advance(length);
+        else if (sim != null) sim.advance(length);
+        else Thread.sleep(length);
+    }
+
+    /**
+     * Load a network from the given file - either the text format (See testGraph.gqu)
+     * or the binary format (See Topology), which is recognized by its header
      * @param fileName The name of the network file to load
-     * @returns Network - a new Network containing the nodes/edges described in the file
-     *                  - null if there is an error
      **/
     public void loadNetwork(String fileName) throws Exception {
-        BufferedReader in = new BufferedReader(new FileReader(fileName));
-        String[] line = null;
-        // First get the size of the network (nodes and edges)
-        line = getNextLine(in);
-        int n = Integer.parseInt(line[0]);
-        int m = Integer.parseInt(line[1]);
+        loadNetwork(Topology.read(fileName));
+    }
+
+    /**
+     * Build the network's nodes and edges from a loaded topology
+     **/
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public void loadNetwork(Topology t) throws Exception {
+        int n = t.nodeCount;
+        int m = t.edgeCount;
+        IntIntMap index = new IntIntMap(n);
         for (int i = 0; i < n; i++) {
-            line = getNextLine(in);
-            int nsap = Integer.parseInt(line[0]);
-            double prob = Double.parseDouble(line[1]);
-            double meanDown = Double.parseDouble(line[2]);
-            double stdDown = Double.parseDouble(line[3]);
-            Node node = new Node(nsap, prob, meanDown, stdDown, null);
-            nodes.put(nsap, node);  // Save the node in the hashmap for quick lookup
+            if (index.put(t.nsap[i], i) >= 0) {
+                throw new Exception("Node (" + t.nsap[i] + ") listed twice.");
+            }
         }
+        // Dense endpoints of each edge (in file order), counting the degrees as we go
+        int[] from = new int[m];
+        int[] to = new int[m];
+        int[] outStart = new int[n+1];
+        int[] inStart = new int[n+1];
         for (int i = 0; i < m; i++) {
-            line = getNextLine(in);
-            int nsapA = Integer.parseInt(line[0]);
-            int nsapB = Integer.parseInt(line[1]);
-            double meanSpeed = Double.parseDouble(line[2]);
-            double stdSpeed = Double.parseDouble(line[3]);
-            Node a = nodes.get(nsapA);
-            if (a == null) {
-                throw new Exception("Node (" + nsapA + ") not found.");
+            from[i] = index.get(t.edgeSource[i]);
+            if (from[i] < 0) {
+                throw new Exception("Node (" + t.edgeSource[i] + ") not found.");
             }
-            Node b = nodes.get(nsapB);
-            if (b == null) {
-                throw new Exception("Node (" + nsapB + ") not found.");
+            to[i] = index.get(t.edgeDest[i]);
+            if (to[i] < 0) {
+                throw new Exception("Node (" + t.edgeDest[i] + ") not found.");
             }
-            Connection c = new Connection(a, b, meanSpeed, stdSpeed);
-            a.outgoingLinks.add(c);
-            b.incomingLinks.add(c);
+            outStart[from[i]+1]++;
+            inStart[to[i]+1]++;
+        }
+        for (int i = 0; i < n; i++) {
+            outStart[i+1] += outStart[i];
+            inStart[i+1] += inStart[i];
         }
+        // Fill the rows - a stable counting sort, so each node keeps its links in file order
+        int[] outFill = java.util.Arrays.copyOf(outStart, n);
+        int[] inFill = java.util.Arrays.copyOf(inStart, n);
+        outTargets = new int[m];
+        outMean = new double[m];
+        outStd = new double[m];
+        outMinDelay = new long[m];
+        inSources = new int[m];
+        inEdges = new int[m];
+        for (int i = 0; i < m; i++) {
+            int e = outFill[from[i]]++;
+            outTargets[e] = to[i];
+            outMean[e] = t.meanSpeed[i];
+            outStd[e] = t.stdSpeed[i];
+            outMinDelay[e] = (long) Math.max(0, Math.floor(t.meanSpeed[i] - LOOKAHEAD_SIGMAS*t.stdSpeed[i]));
+            int j = inFill[to[i]]++;
+            inSources[j] = from[i];
+            inEdges[j] = e;
+        }
+
+        nodeCount = n;
+        nodeIndex = index;
+        nodeNsap = java.util.Arrays.copyOf(t.nsap, n);
+        nodeProbDown = java.util.Arrays.copyOf(t.probDown, n);
+        nodeDownTime = java.util.Arrays.copyOf(t.downTime, n);
+        nodeDownDev = java.util.Arrays.copyOf(t.downDev, n);
+        nodeDown = new AtomicIntegerArray(n);
+        routers = null;
+        outOffsets = outStart;
+        inOffsets = inStart;
+        linkLocks = new Object[LINK_LOCKS];
+        for (int i = 0; i < LINK_LOCKS; i++) linkLocks[i] = new Object();
+        inFlight = (ArrayDeque<Object>[]) new ArrayDeque[m];
+        lastArrival = new long[m];
+        linkRandom = new SplittableRandom[m];
+        nodeRandom = new SplittableRandom[n];
+        view = null;
     }
 
     /**
-     * Get the next line from the buffered reader that is NOT just a pure comment
-     * Returns it as an array of Strings (tokenied by spaces) and with comments removed
-     */
-    private static String[] getNextLine(BufferedReader in) throws Exception {
-        String[] line;
-        do {
-            line = parseLine(in.readLine());
-        } while (line.length == 0 || line[0].length() == 0);
-        return line;
-    }
-    
-    private static String[] parseLine(String line) {
-        // First remove comments (if any)
-        String[] commentLess = line.split("#", 2);
-        return commentLess[0].split(" ");
+     * The Node/Connection view of the network (built the first time it is needed)
+     **/
+    private synchronized ArrayList<Node> getView() {
+        if (view == null) {
+            ArrayList<Node> v = new ArrayList<Node>(nodeCount);
+            for (int i = 0; i < nodeCount; i++) v.add(new Node(i));
+            for (int i = 0; i < nodeCount; i++) {
+                Node a = v.get(i);
+                for (int e = outOffsets[i]; e < outOffsets[i+1]; e++) {
+                    Connection c = new Connection(e, a, v.get(outTargets[e]));
+                    a.outgoingLinks.add(c);
+                }
+            }
+            // Incoming lists share the Connection objects, in incoming order
+            for (int i = 0; i < nodeCount; i++) {
+                Node b = v.get(i);
+                for (int j = inOffsets[i]; j < inOffsets[i+1]; j++) {
+                    Node a = v.get(inSources[j]);
+                    b.incomingLinks.add(a.outgoingLinks.get(inEdges[j] - outOffsets[a.index]));
+                }
+            }
+            view = v;
+        }
+        return view;
     }
 
     /**
      * Print the entire network
      **/
     public void printNetwork(PrintWriter out) {
-        nodes.forEach((id, n) -> out.println(n));
+        getView().forEach(n -> out.println(n));
     }
 
     public void printNetwork(PrintStream out) {
-        nodes.forEach((id, n) -> out.println(n));
+        getView().forEach(n -> out.println(n));
     }
 
     /**
      * Apply a function to each node in the network - mostly hopefully for display purposes only!
      **/
     public void forEachNode(BiConsumer<Integer, Node> action) {
-        nodes.forEach(action);
+        getView().forEach(n -> action.accept(n.nsap, n));
     }
+
+    /** Number of nodes and links in the network **/
+    public int getNodeCount() { return nodeCount; }
+
+    /**
+     * The dense index (0 .. getNodeCount()-1) of the node with the given NSAP, or -1 if there is none.
+     * Lets routers keep per-destination tables in plain arrays.
+     **/
+    public int getNodeIndex(int nsap) { return nodeIndex.get(nsap); }
+
+    /** The NSAP of the node with the given dense index **/
+    public int getNodeNsap(int index) { return nodeNsap[index]; }
+    public int getLinkCount() { return outTargets == null ? 0 : outTargets.length; }
     
     /**
      * Create routers for all the nodes on the network
      **/
     public void createRouters(Router.Generator gen) {
-        nodes.forEach((id, n) -> {
-                // Create a network interface card for each router
-                // Build an Integer only list of links to this NIC.
-                ArrayList<Integer> outgoingLinks = new ArrayList<Integer>(n.outgoingLinks.size());
-                ArrayList<Integer> incomingLinks = new ArrayList<Integer>(n.incomingLinks.size());
-                n.outgoingLinks.forEach(c -> outgoingLinks.add(c.destination.nsap));
-                n.incomingLinks.forEach(c -> incomingLinks.add(c.source.nsap));
-                NetworkInterface nic = new NetworkInterface(this, n.nsap, outgoingLinks, incomingLinks, 100);
-                
-                Router r = gen.createRouter(n.nsap, nic);  // Create router using the generator
-                n.r = r;                                   // Associate it with the node
-                n.r.start();                               // Start it running
-            });
+        createRouters(gen, Router.Scheduling.PLATFORM);
+    }
+
+    /**
+     * Create routers for all the nodes on the network, running them with the given scheduling
+     **/
+    public void createRouters(Router.Generator gen, Router.Scheduling scheduling) {
+        if (!isDiscreteEvent() && timers == null) startTimers();
+        if (psim != null) psim.partition(outOffsets, outTargets, outMinDelay);
+        routers = new Router[nodeCount];
+        routersStarted = currentTime();
+        for (int i = 0; i < nodeCount; i++) {
+            // Create a network interface card for each router
+            // Build an Integer only list of links to this NIC.
+            ArrayList<Integer> outgoingLinks = new ArrayList<Integer>(outOffsets[i+1] - outOffsets[i]);
+            ArrayList<Integer> incomingLinks = new ArrayList<Integer>(inOffsets[i+1] - inOffsets[i]);
+            for (int e = outOffsets[i]; e < outOffsets[i+1]; e++) outgoingLinks.add(nodeNsap[outTargets[e]]);
+            for (int j = inOffsets[i]; j < inOffsets[i+1]; j++) incomingLinks.add(nodeNsap[inSources[j]]);
+            NetworkInterface nic = new NetworkInterface(this, nodeNsap[i], outgoingLinks, incomingLinks, 100);
+
+            routers[i] = gen.createRouter(nodeNsap[i], nic);  // Create router using the generator
+        }
+        // Start them once every node has its router (a packet may arrive at any of them right away)
+        if (psim != null) {
+            psim.start(routers);  // Each partition's worker steps its own routers
+            for (int p = 0; p < psim.getPartitionCount(); p++) scheduleFailures(p, currentTime() + 1000);
+            return;
+        }
+        for (Router r: routers) startRouter(r, scheduling);
+        schedule(currentTime() + 1000, ParallelSimulator.FAILURES, 0, () -> updateFailures(-1));
+    }
+
+    private RouterPool pool = null;  // Shared threads for POOLED routers (created when first needed)
+    private boolean noVirtualThreads = false;  // Set once we find the JVM does not support them
+
+    private void startRouter(Router r, Router.Scheduling scheduling) {
+        if (scheduling == Router.Scheduling.VIRTUAL) {
+            Thread t = noVirtualThreads ? null : newVirtualThread(r);
+            if (t != null) {
+                t.start();
+                return;
+            }
+            scheduling = Router.Scheduling.POOLED;  // No virtual threads on this JVM
+        }
+        if (scheduling == Router.Scheduling.POOLED && r.isSteppable()) {
+            if (pool == null) pool = new RouterPool(Runtime.getRuntime().availableProcessors(), debug);
+            pool.start(r);
+        } else {
+            r.start();  // Its own platform thread
+        }
+    }
+
+    /**
+     * Create a virtual thread running the router's loop, or null if this JVM has none (before Java 21).
+     * Looked up reflectively so the simulator still compiles and runs on older JDKs.
+     **/
+    private Thread newVirtualThread(Router r) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class).invoke(builder, "Router-" + r.nsap);
+            return (Thread) builderClass.getMethod("unstarted", Runnable.class).invoke(builder, r);
+        } catch (ReflectiveOperationException e) {
+            debug.println(2, "Virtual threads are not available.  Using a shared pool instead.");
+            noVirtualThreads = true;
+            return null;
+        }
+    }
+
+    /**
+     * Once every second each node that is up may fail.  A failed node stays down for
+     * a (Gaussian) random number of seconds - a timer per node brings it back up.
+     * The parallel engine does this per partition, for just that partition's nodes (-1 = all of them).
+     **/
+    private void updateFailures(int partition) {
+        for (int i = 0; i < nodeCount; i++) {
+            if (nodeDown.get(i) != 0) continue;
+            if (partition >= 0 && psim.getPartition(i) != partition) continue;
+            SplittableRandom r = nodeRandom[i];
+            if (r == null) {
+                r = stream(NODE_STREAMS, i);
+                nodeRandom[i] = r;
+            }
+            if (r.nextDouble() < nodeProbDown[i]) {
+                double remainingDown = Math.max(nextGaussian(r)*nodeDownDev[i] + nodeDownTime[i], 0);
+                if (remainingDown <= 0) continue;  // Down for no time at all
+                int n = i;
+                nodeDown.set(n, 1);
+                debug.println(3, () -> "Node " + nodeNsap[n] + " went down for " + remainingDown + " seconds.");
+                Runnable recover = () -> {
+                    nodeDown.set(n, 0);
+                    debug.println(3, () -> "Node " + nodeNsap[n] + " is back up.");
+                };
+                long back = currentTime() + Math.round(remainingDown*1000);
+                if (psim != null) psim.schedule(n, back, ParallelSimulator.RECOVERY, n, recover);
+                else schedule(back, ParallelSimulator.RECOVERY, n, recover);
+            }
+        }
+        if (partition >= 0) scheduleFailures(partition, currentTime() + 1000);
+        else schedule(currentTime() + 1000, ParallelSimulator.FAILURES, 0, () -> updateFailures(-1));
+    }
+
+    private void scheduleFailures(int partition, long time) {
+        psim.schedulePartition(partition, time, ParallelSimulator.FAILURES, partition, () -> updateFailures(partition));
     }
     
     private int packetFrequency = 0;
@@ -291,13 +847,48 @@ public class Network {
         runNetwork(out, length);
 
         // Finished -- Sleep a few seconds to allow packets to arrive
-        Thread.sleep(1000);
+        pause(1000);
         debug.println(1, "Network simulation completed.  Displaying statistics...");
-        displayStats();        
+        debug.flush();  // Let the debug output catch up before the statistics
+        displayStats(out);
     }
 
-    private boolean networkRunning = false;
+    /**
+     * Stop the routers and timers, so a finished network does not keep threads around.
+     * (Not needed when the program exits afterwards - they are all daemon threads.)
+     **/
+    public void shutdown() {
+        setNetworkRunning(false);
+        Router[] rs = routers;
+        if (rs != null) {
+            for (Router r: rs) r.nic.shutdown();
+        }
+        if (pool != null) pool.shutdown();
+        if (psim != null) psim.shutdown();
+        if (timerThread != null) timerThread.interrupt();
+    }
+
+    private volatile boolean networkRunning = false;
     public synchronized void setNetworkRunning(boolean flag) { networkRunning = flag; }
+
+    private Workload.Factory workload = null;  // What runNetwork sends (null = uniformly random pairs, paced every MIN_SLEEP ms)
+    private int trafficThreads = 1;            // Real time mode: threads sending the workload's packets
+    private long trafficSent;                  // Packets the last workload run sent
+    private long trafficLate;                  // Of those, sent more than SPIN_NANOS late
+    private double trafficMillis;              // Over how long (network time, ms)
+
+    /**
+     * Send packets as the given workload says (see Workload), at the packet frequency.
+     * null goes back to uniformly random pairs.
+     **/
+    public void setWorkload(Workload.Factory workload) { this.workload = workload; }
+    public Workload.Factory getWorkload() { return workload; }
+
+    /** Spread a workload's packets across several threads (real time mode only) **/
+    public void setTrafficThreads(int threads) {
+        if (threads < 1) throw new IllegalArgumentException("Need at least one traffic thread: " + threads);
+        trafficThreads = threads;
+    }
     
     /**
      * Simulate the network running for length milliseconds (-1 means "forever")
@@ -307,12 +898,14 @@ public class Network {
      **/
     private final int MIN_SLEEP = 10;
     public void runNetwork(PrintStream out, long length) throws InterruptedException {
-        List<Integer> nsaps = new ArrayList<Integer>(nodes.keySet());
-
+        if (workload != null) {
+            runWorkload(length);
+            return;
+        }
         long endTime = -1;
         if (length >= 0) {
             // "Infinite" time
-            endTime = System.currentTimeMillis() + length;
+            endTime = currentTime() + length;
         }
         setNetworkRunning(true);
         double minRate = 1000.0/MIN_SLEEP;
@@ -336,22 +929,101 @@ public class Network {
             }
             for (int i = 0; i < generate; i++) {
                 // And generate each packet
-                int start = rand.nextInt(nsaps.size());
-                int end = rand.nextInt(nsaps.size()-1);
+                int start = rand.nextInt(nodeCount);
+                int end = rand.nextInt(nodeCount-1);
                 if (end >= start) end++;   // This way we don't have start to start
-                Integer source = nsaps.get(start);
-                Integer dest = nsaps.get(end);
-                PacketStat aPacket = new PacketStat(source, dest);
-                transmit(source, dest, aPacket);
+                PacketStat aPacket = new PacketStat(nodeNsap[start], nodeNsap[end]);
+                transmit(start, aPacket);
             }                
             // Has time run out? (If it was set at all)
-            if (endTime >= 0 && System.currentTimeMillis() > endTime) setNetworkRunning(false);
+            if (endTime >= 0 && currentTime() > endTime) setNetworkRunning(false);
             else {
-                Thread.sleep(sleepTime);  // Pause for a few milliseconds and resume
+                pause(sleepTime);  // Pause for a few milliseconds and resume
             }
         }
     }
 
+    private static final long SPIN_NANOS = 100000;  // Spin, rather than sleep, for the last 0.1 ms before a packet is due
+
+    /**
+     * runNetwork with a workload (at a fixed rate - the packet frequency when it starts).
+     * Discrete event mode sends each packet at its ms of virtual time, taking the traffic threads'
+     * workloads in time order (so a seed still gives the same run).  Real time mode runs the threads:
+     * each sleeps until close to its next packet's nanoTime deadline, then spins.  A thread that falls
+     * behind sends at once until it catches up, so the average rate holds.
+     **/
+    private void runWorkload(long length) throws InterruptedException {
+        int threads = trafficThreads;
+        double rate = getPacketFrequency();
+        long begin = currentTime();
+        trafficSent = 0;
+        trafficLate = 0;
+        setNetworkRunning(true);
+        if (rate <= 0) {
+            // Nothing to send
+            while (networkRunning && (length < 0 || currentTime() - begin < length)) pause(MIN_SLEEP);
+        } else {
+            Workload[] shares = new Workload[threads];
+            for (int i = 0; i < threads; i++) shares[i] = workload.create(this, rate, 1.0 / threads, getTrafficStream(i + 1));
+            if (isDiscreteEvent()) sendVirtual(shares, length);
+            else sendRealTime(shares, length);
+        }
+        trafficMillis = currentTime() - begin;
+        setNetworkRunning(false);
+    }
+
+    private void sendVirtual(Workload[] shares, long length) throws InterruptedException {
+        long begin = currentTime();
+        long end = length >= 0 ? begin + length : Long.MAX_VALUE;
+        int[][] pairs = new int[shares.length][2];
+        long[] due = new long[shares.length];  // Each workload's next packet (ns from begin)
+        for (int i = 0; i < shares.length; i++) due[i] = shares[i].next(pairs[i]);
+        while (networkRunning) {
+            int s = 0;
+            for (int i = 1; i < shares.length; i++) {
+                if (due[i] < due[s]) s = i;
+            }
+            long time = begin + due[s] / 1000000;
+            if (due[s] == Long.MAX_VALUE || time > end) break;  // No more packets, or out of time
+            long now = currentTime();
+            if (time > now) pause(time - now);
+            transmit(pairs[s][0], new PacketStat(nodeNsap[pairs[s][0]], nodeNsap[pairs[s][1]]));
+            trafficSent++;
+            due[s] = shares[s].next(pairs[s]);
+        }
+        if (networkRunning && end != Long.MAX_VALUE && currentTime() < end) pause(end - currentTime());
+    }
+
+    private void sendRealTime(Workload[] shares, long length) throws InterruptedException {
+        long begin = System.nanoTime();
+        long span = length >= 0 ? length * 1000000 + 1 : Long.MAX_VALUE;  // Packets due this long after the start are not sent (ns)
+        LongAdder sent = new LongAdder();
+        LongAdder late = new LongAdder();
+        Thread[] senders = new Thread[shares.length];
+        for (int i = 0; i < shares.length; i++) {
+            Workload w = shares[i];
+            senders[i] = new Thread(() -> {
+                    int[] pair = new int[2];
+                    for (long t = w.next(pair); networkRunning && t < span; t = w.next(pair)) {
+                        long deadline = begin + t;
+                        long wait;
+                        while ((wait = deadline - System.nanoTime()) > 0) {
+                            if (wait > SPIN_NANOS) LockSupport.parkNanos(wait - SPIN_NANOS);
+                            else Thread.onSpinWait();
+                        }
+                        if (-wait > SPIN_NANOS) late.increment();
+                        transmit(pair[0], new PacketStat(nodeNsap[pair[0]], nodeNsap[pair[1]]));
+                        sent.increment();
+                    }
+                }, "Traffic-" + i);
+            senders[i].setDaemon(true);
+            senders[i].start();
+        }
+        for (Thread t: senders) t.join();
+        trafficSent = sent.sum();
+        trafficLate = late.sum();
+    }
+
     /**
      * Return a (copy of) the current stats
      **/
@@ -359,39 +1031,106 @@ public class Network {
         return (Stat) stats.clone();
     }
     
+    /**
+     * Total number of payloads dropped because a NIC queue was full
+     **/
+    public long getQueueDrops() {
+        long drops = 0;
+        Router[] rs = routers;
+        if (rs == null) return 0;
+        for (Router r: rs) {
+            drops += r.nic.getTransmitDrops() + r.nic.getReceiveDrops();
+        }
+        return drops;
+    }
+
+    /**
+     * Routing protocol overhead: routers report each control packet they send (with its size in bytes)
+     * and each time their routes change, so the protocols can be compared.
+     **/
+    void countControlPacket(int bytes) {
+        controlPackets.increment();
+        controlBytes.add(bytes);
+    }
+    synchronized void routesChanged() {
+        long now = currentTime();
+        if (routesSettled < 0 && lastRouteChange >= 0 && now - lastRouteChange >= CONVERGENCE_WINDOW) {
+            routesSettled = lastRouteChange;  // Nothing changed for a whole window before this one
+        }
+        // In parallel mode the partitions' clocks differ (by less than the lookahead), so keep the latest
+        lastRouteChange = Math.max(lastRouteChange, now);
+    }
+
+    public long getControlPackets() { return controlPackets.sum(); }
+    public long getControlBytes() { return controlBytes.sum(); }
+
+    /** Control bytes per second since the routers started **/
+    public double getControlByteRate() {
+        long elapsed = currentTime() - routersStarted;
+        return routersStarted < 0 || elapsed <= 0 ? 0 : controlBytes.sum() * 1000.0 / elapsed;
+    }
+
+    /**
+     * How long routing took to settle (ms): from the routers starting to the last route change
+     * before the first CONVERGENCE_WINDOW ms in which no router changed a route.
+     * Later changes (a node failing, or ping jitter swapping between near equal routes on
+     * the next cost cycle) do not count - it is the time to first become stable.
+     * -1 if no route has changed, or routes have not yet been still for a whole window.
+     **/
+    public synchronized long getConvergenceTime() {
+        long settled = routesSettled;
+        if (settled < 0 && lastRouteChange >= 0 && currentTime() - lastRouteChange >= CONVERGENCE_WINDOW) {
+            settled = lastRouteChange;  // Still since the last change
+        }
+        return settled < 0 || routersStarted < 0 ? -1 : settled - routersStarted;
+    }
+
     /**
      * Report some statistics on the network performance
      **/
-    private void displayStats() {
-        // First compute the statistics
-        int packetsTransmitted = stats.packetsSent.size();
-        int packetsReceived = 0;
-        int duplicatePackets = 0;
-        double averagePacketTime = 0.0;
-        for (PacketStat s: stats.packetsSent) {
-            if (s.arrivals > 0) {
-                packetsReceived++;
-                duplicatePackets += (s.arrivals - 1);  // How many duplicates were sent to final destination
-                averagePacketTime = (averagePacketTime*(packetsReceived-1) + s.timeTaken)/packetsReceived;
-            } 
-        }
-        System.out.println("Network Statistics");
-        System.out.println("   Packets transmitted:     " + packetsTransmitted);
-        System.out.println("   Packets received:        " + packetsReceived);
-        System.out.println("   Success percentage:      " + ((double) packetsReceived/packetsTransmitted)*100);
-        System.out.println("   Duplicate packets:       " + duplicatePackets);
-        System.out.println("   Average time taken (ms): " + averagePacketTime);
+    private void displayStats(PrintStream out) {
+        Stat stat = getStats();
+        long packetsTransmitted = stat.getTotalPacketsSent();
+        long packetsReceived = stat.getPacketsReceived();
+        out.println("Network Statistics");
+        out.println("   Random seed:             " + seed);
+        out.println("   Packets transmitted:     " + packetsTransmitted);
+        out.println("   Packets received:        " + packetsReceived);
+        out.println("   Success percentage:      " + ((double) packetsReceived/packetsTransmitted)*100);
+        out.println("   Duplicate packets:       " + stat.getDuplicatePackets());
+        out.println("   Lost packets (presumed): " + stat.getLostPackets());
+        out.println("   Packets still in flight: " + stat.getPacketsInFlight());
+        out.println("   Average time taken (ms): " + stat.getMeanTimeTaken());
+        out.println("   Time taken p50/p90/p99/p99.9/max (ms): " + stat.getTimeTakenPercentile(50) + " / "
+                           + stat.getTimeTakenPercentile(90) + " / " + stat.getTimeTakenPercentile(99) + " / "
+                           + stat.getTimeTakenPercentile(99.9) + " / " + stat.getMaxTimeTaken());
+        out.println("   Queue drops:             " + getQueueDrops());
+        if (workload != null && trafficMillis > 0) {
+            out.println("   Workload sent:           " + trafficSent + " packets, "
+                               + Math.round(trafficSent * 1000.0 / trafficMillis) + " packets/s"
+                               + (isDiscreteEvent() ? "" : " (" + trafficLate + " late)"));
+        }
+        if (getControlPackets() > 0) {
+            out.println("   Control traffic:         " + getControlPackets() + " packets, " + getControlBytes()
+                               + " bytes (" + Math.round(getControlByteRate()) + " bytes/s)");
+            out.println("   Convergence time (ms):   " + getConvergenceTime() + " (until routes were still for "
+                               + CONVERGENCE_WINDOW + " ms)");
+        }
+        if (timers != null) out.println("   " + timers);
+        if (psim != null) {
+            out.println("   Parallel simulation:     " + psim.getPartitionCount() + " partitions, lookahead "
+                               + psim.getLookahead() + " ms, " + psim.getWindows() + " windows");
+        }
     }
     
     /**
      * "Transmit" data from source to destination in the network
      **/
-    private void transmit(Integer source, Integer dest, PacketStat data) {
-        Node s = nodes.get(source);
-        if (s.remainingDown > 0) return;   // Source is still down, can't transmit.
-        debug.println(3, "Transmitting from " + source + " to " + dest);
+    private void transmit(int source, PacketStat data) {
+        if (nodeDown.get(source) != 0) return;   // Source is still down, can't transmit.
+        debug.println(3, () -> "Transmitting from " + data.source + " to " + data.dest);
         stats.add(data);  // Record the transmission
-        s.r.nic.transmit(dest, data);
+        routers[source].nic.transmit(data.dest, data);
     }
 
     /**
@@ -400,20 +1139,26 @@ public class Network {
     public void receive(Integer dest, Object data) {
         if (data instanceof PacketStat) {
             PacketStat payload = (PacketStat) data;
+            if (payload.dest != dest) {
+                debug.println(0, "Coding Error: The payload did not arrive at the proper destination.");
+                return;
+            }
+            long timeTaken;
             synchronized (payload) {
-                if (payload.dest != dest) {
-                    debug.println(0, "Coding Error: The payload did not arrive at the proper destination.");
-                } else if (payload.timeTaken == -1) {
+                // Only the first arrival counts - the lock just decides which one that is
+                payload.arrivals++;
+                timeTaken = payload.timeTaken;
+                if (timeTaken == -1) {
                     // Packet has newly arrived
-                    payload.timeTaken = System.currentTimeMillis() - payload.startTime;
-                    payload.arrivals++;
-                    stats.updateTimeTakenForNewArrival(payload.timeTaken);
-                } else {
-                    debug.println(5, "Duplicate packet arrived. Packet: " + payload);
-                    payload.arrivals++;
-                    stats.increaseDuplicatePackets();
+                    payload.timeTaken = currentTime() - payload.startTime;
                 }
             }
+            if (timeTaken == -1) {
+                stats.updateTimeTakenForNewArrival(payload.packetNumber, payload.timeTaken);
+            } else {
+                debug.println(5, () -> "Duplicate packet arrived. Packet: " + payload);
+                stats.increaseDuplicatePackets();
+            }
         } else {
             debug.println(0, "Error: The payload received was NOT an initially transmitted packet!");
         }
@@ -423,11 +1168,16 @@ public class Network {
      * "Transmit" a packet on a specific link
      **/
     public boolean sendOnLink(int source, int linkIndex, Object packet) {
-        Node sourceNode = nodes.get(source);
-        if (linkIndex < 0 || linkIndex >= sourceNode.outgoingLinks.size())
+        int s = nodeIndex.get(source);
+        if (s < 0)
+            // No such machine
+            return false;
+        if (nodeDown.get(s) != 0)
+            // Machine is down, can't send anything
+            return false;
+        if (linkIndex < 0 || linkIndex >= outOffsets[s+1] - outOffsets[s])
             // No such link exists
             return false;
-        Connection c = sourceNode.outgoingLinks.get(linkIndex);
-        return c.sendOnLink(packet);
+        return sendOnEdge(s, outOffsets[s] + linkIndex, packet);
     }
 }    
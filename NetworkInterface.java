@@ -6,18 +6,30 @@
  * This simulates a "network interface card" simplistically.
  *************/
 import java.util.ArrayList;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 public class NetworkInterface {
     private Network net;  // A reference to the whole network - so we can see where this interface belongs
     private int nsap;   // The ID for this NIC
     private ArrayList<Integer> outgoingLinks;   // A list of outgoing links
     private ArrayList<Integer> incomingLinks;   // A list of incoming links
+    private IntIntMap linkIndex;                // Neighbor NSAP -> index of the (first) outgoing link to it
 
     private int capacity;                       // The limit to number of packets that can be waiting for processing on Queue
-    private Queue<TransmitPair> transmissionQueue;    // A list of data that needs to be transmitted starting from this NIC
-    private Queue<ReceivePair> receivedQueue;        // A list of data that has been received on this NIC and needs to be processed (received or routed)
+    private RingBuffer<TransmitPair> transmissionQueue;    // A list of data that needs to be transmitted starting from this NIC
+    private RingBuffer<ReceivePair> receivedQueue;        // A list of data that has been received on this NIC and needs to be processed (received or routed)
+
+    // Waking up the router when there is something to do (no locks needed in real time mode)
+    private volatile boolean signalled;              // New work or a wake up arrived since the router last waited
+    private volatile Thread waiter;                  // The router thread parked in awaitWork() (if any)
+    private volatile boolean shutdown;               // The network is finished - the router should stop
+    private AtomicReference<Runnable> workCallback;  // Pooled routers: run this on new work instead of unparking a thread
+
+    // Discrete event mode only: the router is idle once it waits for work with none signalled
+    private Simulator sim;             // The network's event engine (null when running in real time)
+    private boolean idle;              // Router is waiting - it has nothing left to do at this time
+    private boolean retired;           // The router has stopped for good - never hold up the clock for it
 
     public class TransmitPair {
         int destination;  // Destination of the data
@@ -36,9 +48,19 @@ public class NetworkInterface {
         this.nsap = nsap;
         this.outgoingLinks = outgoingLinks;
         this.incomingLinks = incomingLinks;
+        this.linkIndex = new IntIntMap(outgoingLinks.size());
+        for (int i = outgoingLinks.size() - 1; i >= 0; i--) linkIndex.put(outgoingLinks.get(i), i);
         this.capacity = capacity;
-        this.transmissionQueue = new ConcurrentLinkedQueue<TransmitPair>();
-        this.receivedQueue = new ConcurrentLinkedQueue<ReceivePair>();
+        this.transmissionQueue = new RingBuffer<TransmitPair>(capacity);
+        this.receivedQueue = new RingBuffer<ReceivePair>(capacity);
+        this.signalled = false;
+        this.shutdown = false;
+        this.waiter = null;
+        this.workCallback = new AtomicReference<>();
+        this.sim = net.getSimulator();
+        this.idle = false;
+        this.retired = false;
+        if (sim != null) sim.routerBusy();  // Busy until the router first checks in
     }
 
     /** Return the NSAP ID for this NIC **/
@@ -51,6 +73,125 @@ public class NetworkInterface {
     public ArrayList<Integer> getOutgoingLinks() { return outgoingLinks; }
     public ArrayList<Integer> getIncomingLinks() { return incomingLinks; }
 
+    /**
+     * The index of the outgoing link to the given neighbor (as getOutgoingLinks().indexOf(neighbor), but O(1))
+     * @returns -1 if there is no link to that neighbor
+     **/
+    public int getLinkIndex(int neighbor) { return linkIndex.get(neighbor); }
+
+    /**
+     * Dense node indexes: every node in the network has one from 0 to getNodeCount()-1,
+     * so routers can keep per-destination tables in arrays.
+     * @returns -1 if there is no node with that NSAP (getNodeId goes the other way)
+     **/
+    public int getNodeIndex(int nsap) { return net.getNodeIndex(nsap); }
+    public int getNodeCount() { return net.getNodeCount(); }
+
+    /** Where this network's debugging output goes (routers should use it, not Debug.getInstance()) **/
+    public Debug getDebug() { return net.getDebug(); }
+    public int getNodeId(int index) { return net.getNodeNsap(index); }
+
+    /**
+     * Get the current network time (in ms).
+     * This is virtual time when the network runs as a discrete event simulation,
+     * so routers should use it instead of System.currentTimeMillis()
+     **/
+    public long getTime() {
+        return net.currentTime();
+    }
+
+    /**
+     * Ask to be woken up at the given network time (e.g. for a periodic timer).
+     * Wakes the router out of awaitWork() even if no packets arrive.
+     **/
+    public void wakeAt(long time) {
+        net.scheduleWake(nsap, time, this::wake);
+    }
+
+    /** A requested wake up time has come **/
+    void wake() {
+        if (sim != null) {
+            synchronized (this) { markBusy(); }  // Not done until the router has seen the new time
+        }
+        signal();
+    }
+
+    /**
+     * Block until there is something to transmit or process, or a requested wake up time arrives.
+     * Routers call this when they run out of work instead of polling in a loop.
+     **/
+    public void awaitWork() {
+        waiter = Thread.currentThread();
+        while (!hasWork()) {
+            LockSupport.park(this);
+            if (Thread.interrupted()) break;
+        }
+        waiter = null;
+        signalled = false;
+    }
+
+    /**
+     * Tell the router to stop (its loop ends the next time it checks)
+     **/
+    void shutdown() {
+        shutdown = true;
+        signal();
+    }
+
+    /** True once the network has asked the router to stop **/
+    public boolean isShutdown() { return shutdown; }
+
+    /**
+     * Pooled routers: instead of blocking, leave a callback to run when there is work.
+     * @returns true if the callback was stored, false if there is work right now (callback not kept)
+     **/
+    boolean onWork(Runnable callback) {
+        workCallback.set(callback);
+        if (hasWork()) {
+            // Take the callback back - unless a producer already took it (and will run it)
+            if (workCallback.compareAndSet(callback, null)) {
+                signalled = false;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether a waiting router has something to do.  In discrete event mode only a signal
+     * counts (the simulator holds signals back until all the events at a time have fired),
+     * and a router with nothing is idle from now until the next signal.
+     **/
+    private boolean hasWork() {
+        if (sim == null) return signalled || !transmissionQueue.isEmpty() || !receivedQueue.isEmpty();
+        synchronized (this) {
+            if (signalled) return true;
+            if (!idle && !retired) {
+                idle = true;
+                sim.routerIdle();
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Let the router know there is work.
+     * Setting signalled before looking for a waiter (and the router doing the reverse)
+     * means one of the two always sees the other, so no wake up is lost.
+     * In discrete event mode the simulator may hold the signal back and send it again later.
+     **/
+    void signal() {
+        if (sim != null && sim.holdSignal(this)) return;
+        signalled = true;
+        Runnable callback = workCallback.getAndSet(null);
+        if (callback != null) {
+            callback.run();
+        } else {
+            Thread t = waiter;
+            if (t != null) LockSupport.unpark(t);
+        }
+    }
+
     /**
      * Send a data "packet" on the given link
      * @param linkIndex The index of the link in the outgoing list
@@ -66,17 +207,17 @@ public class NetworkInterface {
      * Transmit a payload on this network starting at THIS NIC's Router
      * The router must grab off the queue and process
      **/
-    public synchronized void transmit(int dest, Object payload) {
+    public void transmit(int dest, Object payload) {
         if (payload == null) {
             // No transmission of NULL objects -- something must be transmitted.
-            Debug.getInstance().println(0, "Transmission must include at least ONE byte of information.  Sent to Node " + nsap);
+            net.getDebug().println(0, "Transmission must include at least ONE byte of information.  Sent to Node " + nsap);
             return;
         }
-        if (transmissionQueue.size() < capacity) {
-            // There is room to add it
-            transmissionQueue.add(new TransmitPair(dest, payload));
+        if (offer(transmissionQueue, new TransmitPair(dest, payload))) {
+            // There was room to add it
+            signal();
         } else {
-            Debug.getInstance().println(4, "Dropped payload by Node " + nsap);
+            net.getDebug().println(4, () -> "Dropped payload by Node " + nsap);
         }
     }
 
@@ -84,18 +225,18 @@ public class NetworkInterface {
      * Store a received payload from another NIC.
      * The router must grab off the queue and process
      **/
-    public synchronized void receive(int originator, Object payload) {
+    public void receive(int originator, Object payload) {
         if (payload == null) {
             // No transmission of NULL objects -- something must be transmitted.
-            Debug.getInstance().println(0, "Received message with no data.  Must include at least ONE byte of information.  Sent to Node " + nsap);
+            net.getDebug().println(0, "Received message with no data.  Must include at least ONE byte of information.  Sent to Node " + nsap);
             return;
         }
-        if (receivedQueue.size() < capacity) {
-            // There is room to add it
-            receivedQueue.add(new ReceivePair(originator, payload));
+        if (offer(receivedQueue, new ReceivePair(originator, payload))) {
+            // There was room to add it
+            signal();
         } else {
-            Debug.getInstance().println(4, "Node " + nsap + " dropped packet sent on link from " + originator);
-            Debug.getInstance().println(6, "   Payload: " + payload.toString());
+            net.getDebug().println(4, () -> "Node " + nsap + " dropped packet sent on link from " + originator);
+            net.getDebug().println(6, () -> "   Payload: " + payload.toString());
         }
     }
 
@@ -103,18 +244,69 @@ public class NetworkInterface {
      * Get data from transmission Queue
      * @returns Next element to transmit or null if nothing
      **/
-    public synchronized TransmitPair getTransmit() {
-        return transmissionQueue.poll();
+    public TransmitPair getTransmit() {
+        if (sim == null) return transmissionQueue.poll();
+        synchronized (this) { return transmissionQueue.poll(); }
     }
 
     /**
      * Get data from received Queue
      * @returns Next element to process or null if nothing
      **/
-    public synchronized ReceivePair getReceived() {
-        return receivedQueue.poll();
+    public ReceivePair getReceived() {
+        if (sim == null) return receivedQueue.poll();
+        synchronized (this) { return receivedQueue.poll(); }
     }
 
+    /**
+     * Number of payloads dropped because the transmission/received queue was full
+     **/
+    public long getTransmitDrops() { return transmissionQueue.getDropped(); }
+    public long getReceiveDrops() { return receivedQueue.getDropped(); }
+
+    /**
+     * Add to one of the queues.  Lock-free in real time mode - discrete event mode
+     * also has to note that the router is busy, atomically with the add.
+     **/
+    private <E> boolean offer(RingBuffer<E> queue, E item) {
+        if (sim == null) return queue.offer(item);
+        synchronized (this) {
+            if (!queue.offer(item)) return false;
+            markBusy();
+            return true;
+        }
+    }
+
+    /**
+     * Discrete event bookkeeping (caller holds the lock).
+     * New work means busy again, until the router next waits.
+     **/
+    private void markBusy() {
+        if (sim == null || retired) return;
+        if (idle) {
+            idle = false;
+            sim.routerBusy();
+        }
+    }
+
+    /**
+     * The router has stopped (e.g. crashed).  Discrete event mode must not wait on it any more.
+     **/
+    synchronized void retire() {
+        retired = true;
+        if (sim != null && !idle) {
+            idle = true;
+            sim.routerIdle();
+        }
+    }
+
+    /**
+     * Routing protocol statistics: report a control packet (table update, link state, ...) of
+     * the given (estimated) size being sent, or this router's routes changing
+     **/
+    public void countControlPacket(int bytes) { net.countControlPacket(bytes); }
+    public void routesChanged() { net.routesChanged(); }
+
     /**
      * Statistics tracker - used to help track packets that were sent/received
      */
@@ -0,0 +1,50 @@
+/***************
+ * PacketPool
+ *
+ * A free list of recyclable control packets, so routers do not allocate a new ping,
+ * pong or table for every message.  Each router owns its pools and is the only one
+ * to take packets from them; the neighbors that receive the packets put them back
+ * (release), from any thread - so the free list is a RingBuffer (many producers, one consumer).
+ * A packet that is never released (lost on a link, dropped by a full queue) is simply
+ * left to the garbage collector, and a new one is made when the pool runs dry.
+ ***************/
+import java.util.function.Supplier;
+
+public class PacketPool<T extends AbstractDynamicRouter.ControlPacket> {
+    private final RingBuffer<T> free;    // Released packets, ready to be reused
+    private final Supplier<T> factory;   // Makes a new packet when none are free
+    private long created;                // Packets made so far (the rest of take() calls were reuses)
+    private long taken;                  // take() calls so far
+
+    public PacketPool(int capacity, Supplier<T> factory) {
+        this.free = new RingBuffer<>(capacity);
+        this.factory = factory;
+        this.created = 0;
+        this.taken = 0;
+    }
+
+    /**
+     * Get a packet to fill in (owning router only).  It holds one reference:
+     * the caller must release it, or pass it on to someone who will.
+     **/
+    public T take() {
+        T p = free.poll();
+        if (p == null) {
+            p = factory.get();
+            p.pool = this;
+            created++;
+        }
+        taken++;
+        p.retain(1);
+        return p;
+    }
+
+    /** Put a packet whose last reference was released back on the free list (any thread) **/
+    @SuppressWarnings("unchecked")
+    void recycle(AbstractDynamicRouter.ControlPacket p) {
+        free.offer((T) p);  // If the list is full, the packet is just dropped
+    }
+
+    public long getCreated() { return created; }
+    public long getTaken() { return taken; }
+}
@@ -0,0 +1,69 @@
+/***************
+ * ParallelBenchmark
+ *
+ * How the parallel discrete event engine (ParallelSimulator) scales: the same network,
+ * seed and traffic run with 1, 2, 4, ... threads, timing each run.
+ * Every run must give exactly the results of the 1 thread run - the benchmark checks
+ * that too, and says so if one does not.
+ * Usage: java ParallelBenchmark [nodes|file] [router] [length ms] [packets/s] [max threads]
+ *   (default: 2000 generated nodes, flood, 10000 ms, 1000 packets/s, number of cores)
+ ***************/
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Random;
+
+public class ParallelBenchmark {
+    static final long SEED = 1;
+
+    public static void main(String[] args) throws Exception {
+        String network = args.length > 0 ? args[0] : "2000";
+        String router = args.length > 1 ? args[1] : "flood";
+        long length = args.length > 2 ? Long.parseLong(args[2]) : 10000;
+        int rate = args.length > 3 ? Integer.parseInt(args[3]) : 1000;
+        int maxThreads = args.length > 4 ? Integer.parseInt(args[4]) : Runtime.getRuntime().availableProcessors();
+        Topology t = network.matches("\\d+") ? HotPathBenchmark.generate(Integer.parseInt(network), new Random(SEED))
+            : Topology.read(network);
+        System.out.println(t.getNodeCount() + " nodes, " + t.getEdgeCount() + " links, " + router + " routers, "
+                           + length + " ms at " + rate + " packets/s");
+        System.out.printf("%8s %10s %10s %10s %10s  %s%n", "Threads", "Wall (ms)", "Speedup", "Lookahead", "Windows", "Results");
+
+        String reference = null;
+        long baseline = 0;
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            Network net = new Network(new Debug(0, System.err));
+            net.setParallel(threads);
+            net.setSeed(SEED);
+            net.loadNetwork(t);
+            net.createRouters(BatchRunner.generator(router), Router.Scheduling.POOLED);
+            long start = System.nanoTime();
+            net.runNetwork(new PrintStream(NOWHERE), length, rate);
+            long wall = (System.nanoTime() - start) / 1000000;
+            String results = summary(net);
+            ParallelSimulator psim = net.getParallelSimulator();
+            net.shutdown();
+            if (reference == null) {
+                reference = results;
+                baseline = wall;
+            }
+            System.out.printf("%8d %10d %9.2fx %10s %10d  %s%n", threads, wall, (double) baseline / Math.max(1, wall),
+                              psim.getLookahead() == Long.MAX_VALUE ? "-" : psim.getLookahead() + " ms",
+                              psim.getWindows(), results.equals(reference) ? "same" : "DIFFERENT: " + results);
+            if (threads == 1) System.out.println("         (" + results + ")");
+        }
+        System.exit(0);
+    }
+
+    // Everything that must match between runs
+    private static String summary(Network net) {
+        Network.Stat stat = net.getStats();
+        return "sent " + stat.getTotalPacketsSent() + ", received " + stat.getPacketsReceived()
+            + ", duplicates " + stat.getDuplicatePackets() + ", mean " + String.format("%.3f", stat.getMeanTimeTaken())
+            + " ms, p99 " + stat.getTimeTakenPercentile(99) + " ms, control " + net.getControlPackets()
+            + ", queue drops " + net.getQueueDrops();
+    }
+
+    private static final OutputStream NOWHERE = new OutputStream() {
+            public void write(int b) { }
+            public void write(byte[] b, int off, int len) { }
+        };
+}
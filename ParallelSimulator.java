@@ -0,0 +1,402 @@
+/***************
+ * ParallelSimulator
+ *
+ * A discrete event engine that splits the network's nodes into partitions, each with its
+ * own event queue, clock and worker thread (conservative parallel discrete event simulation).
+ *
+ * Link delays are never shorter than the link's minimum delay (see Network.LOOKAHEAD_SIGMAS),
+ * so a packet sent across partitions at time t arrives at t + lookahead or later, where the
+ * lookahead is the smallest minimum delay of any link between two partitions.  The partitions
+ * therefore run in windows of lookahead ms: within a window each one works through its own
+ * events without waiting for the others, and everything it sends to another partition lands
+ * in a later window.  A barrier separates the windows.  Links with no minimum delay at all are
+ * never cut - their two ends always share a partition.
+ *
+ * The routers of a partition are stepped by its worker (like RouterPool does), not run on
+ * threads of their own.  All the events at one time fire before the routers get to run, in
+ * an order that does not depend on the partitioning, so any number of threads gives the
+ * same results as one (for the same seed).
+ ***************/
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CyclicBarrier;
+
+public class ParallelSimulator {
+    // Kinds of event, in the order they fire when due at the same time
+    static final int FAILURES = 0;   // A partition's nodes may fail (id = partition)
+    static final int RECOVERY = 1;   // A failed node comes back up (id = node)
+    static final int DELIVERY = 2;   // A packet reaches the end of a link (id = edge)
+    static final int WAKE = 3;       // A router asked to be woken up (id = node)
+
+    private static final int BATCH_SIZE = 64;       // Steps a router may take before the next one gets a turn
+    private static final double IMBALANCE = 0.1;    // How much bigger than average a partition may get for a longer lookahead
+
+    private static class Event implements Comparable<Event> {
+        long time;        // Virtual time at which the event fires
+        long key;         // Kind and id - orders events at the same time the same way however the nodes are split
+        long seq;         // Last tie breaker (events with the same key at the same time may fire in any order)
+        Runnable action;
+
+        Event(long time, long key, Runnable action) {
+            this.time = time;
+            this.key = key;
+            this.action = action;
+        }
+
+        public int compareTo(Event other) {
+            if (time != other.time) return Long.compare(time, other.time);
+            if (key != other.key) return Long.compare(key, other.key);
+            return Long.compare(seq, other.seq);
+        }
+    }
+
+    /**
+     * One partition: its nodes and their events and routers.  Only its worker touches it
+     * while a window runs; other threads post events to the inbox instead.
+     **/
+    private class Partition {
+        int index;
+        int[] nodes;                                // Dense indexes of its nodes (ascending)
+        PriorityQueue<Event> events;                // Pending events
+        ConcurrentLinkedQueue<Event> inbox;         // Events from other threads, moved to events between windows
+        ArrayDeque<Router> ready;                   // Routers with work to do (in the order they got it)
+        volatile long now;                          // This partition's clock
+        long seqCount;
+
+        Partition(int index) {
+            this.index = index;
+            events = new PriorityQueue<>();
+            inbox = new ConcurrentLinkedQueue<>();
+            ready = new ArrayDeque<>();
+            now = 0;
+            seqCount = 0;
+        }
+
+        void add(Event e) {
+            e.seq = seqCount++;
+            events.add(e);
+        }
+
+        void drainInbox() {
+            Event e;
+            while ((e = inbox.poll()) != null) add(e);
+        }
+
+        /**
+         * Run every event before the end of the window: each time, fire all the events due
+         * then, then step the routers until they have nothing left to do
+         **/
+        void runWindow(long end) {
+            while (true) {
+                stepRouters();
+                Event e = events.peek();
+                if (e == null || e.time >= end) return;
+                now = e.time;
+                while ((e = events.peek()) != null && e.time == now) {
+                    events.poll();
+                    e.action.run();
+                }
+            }
+        }
+
+        void stepRouters() {
+            Router r;
+            while ((r = ready.poll()) != null) {
+                try {
+                    boolean busy = true;
+                    for (int i = 0; i < BATCH_SIZE && busy; i++) busy = r.process();
+                    if (busy || !r.nic.onWork(callbacks[r.nic.getNodeIndex(r.nsap)])) {
+                        ready.add(r);  // Still busy (or work showed up meanwhile) - back of the line
+                    }
+                } catch (RuntimeException e) {
+                    // Same as an uncaught exception killing a router thread
+                    debug.println(0, "Router " + r.nsap + " stopped: " + e);
+                    r.nic.retire();
+                }
+            }
+        }
+    }
+
+    // A partition's worker: runs windows whenever runUntil() asks
+    private class Worker extends Thread {
+        Partition partition;
+
+        Worker(Partition partition) {
+            super("Partition-" + partition.index);
+            this.partition = partition;
+            setDaemon(true);
+        }
+
+        ParallelSimulator owner() { return ParallelSimulator.this; }
+
+        public void run() {
+            try {
+                while (!stopped) {
+                    runBarrier.await();  // Start of a run
+                    while (!finished) {
+                        partition.runWindow(windowEnd);
+                        windowBarrier.await();  // The last one to arrive sets up the next window
+                    }
+                    runBarrier.await();  // Run done
+                }
+            } catch (InterruptedException | BrokenBarrierException e) {
+                // shutdown()
+            }
+        }
+    }
+
+    private Debug debug;
+    private Partition[] partitions;
+    private Worker[] workers;
+    private int[] partitionOf;            // Dense node index -> its partition
+    private Runnable[] callbacks;         // Per node: put its router on the ready list
+    private long lookahead;               // Smallest minimum delay of a link between partitions (ms)
+    private CyclicBarrier windowBarrier;  // Between windows (workers only)
+    private CyclicBarrier runBarrier;     // Start and end of runUntil (workers and the caller)
+    private volatile long now;            // The clock between runs (all partitions have reached it)
+    private volatile long endTime;        // runUntil's end
+    private volatile long windowEnd;      // End of the current window (exclusive)
+    private volatile boolean finished;    // Nothing is left to do before endTime
+    private volatile boolean stopped;
+    private long windows;                 // Windows run so far
+
+    public ParallelSimulator(int threads, Debug debug) {
+        if (threads < 1) throw new IllegalArgumentException("Need at least one thread: " + threads);
+        this.debug = debug;
+        partitions = new Partition[threads];
+        for (int i = 0; i < threads; i++) partitions[i] = new Partition(i);
+        now = 0;
+        lookahead = Long.MAX_VALUE;
+        windows = 0;
+    }
+
+    /**
+     * Split the nodes between the partitions (see partition below).
+     * @param minDelay The minimum delay of each link (ms) - in CSR order (outOffsets/outTargets)
+     **/
+    void partition(int[] outOffsets, int[] outTargets, long[] minDelay) {
+        int n = outOffsets.length - 1;
+        int parts = Math.min(partitions.length, Math.max(1, n));
+        partitionOf = partition(outOffsets, outTargets, minDelay, parts);
+        int[] counts = new int[partitions.length];
+        for (int v = 0; v < n; v++) counts[partitionOf[v]]++;
+        for (Partition p: partitions) p.nodes = new int[counts[p.index]];
+        Arrays.fill(counts, 0);
+        for (int v = 0; v < n; v++) partitions[partitionOf[v]].nodes[counts[partitionOf[v]]++] = v;
+        lookahead = Long.MAX_VALUE;
+        for (int u = 0; u < n; u++) {
+            for (int e = outOffsets[u]; e < outOffsets[u+1]; e++) {
+                if (partitionOf[u] != partitionOf[outTargets[e]]) lookahead = Math.min(lookahead, minDelay[e]);
+            }
+        }
+        callbacks = new Runnable[n];
+    }
+
+    /**
+     * Graph partitioning: the links with the shortest minimum delays are kept inside partitions
+     * (their ends are merged first), as many as can be while no merged group grows past an even
+     * share of the nodes - the more are kept inside, the longer the lookahead.  Links with no
+     * minimum delay are always kept inside.  The groups are then laid out in breadth first order
+     * (so neighbors tend to stay together) and cut into parts of about n/parts nodes each.
+     * @returns the partition of each node
+     **/
+    static int[] partition(int[] outOffsets, int[] outTargets, long[] minDelay, int parts) {
+        int n = outOffsets.length - 1;
+        int[] result = new int[n];
+        if (parts <= 1) return result;
+
+        // The candidate lookaheads: 1, and one more than each distinct minimum delay
+        long[] candidates = new long[minDelay.length + 1];
+        for (int e = 0; e < minDelay.length; e++) candidates[e] = minDelay[e] + 1;
+        candidates[minDelay.length] = 1;
+        Arrays.sort(candidates);
+        int distinct = 0;
+        for (long c: candidates) {
+            if (distinct == 0 || candidates[distinct - 1] != c) candidates[distinct++] = c;
+        }
+        // The biggest one whose merged groups still fit (merging only grows the groups, so search)
+        long cap = (long) Math.ceil((double) n / parts * (1 + IMBALANCE));
+        int lo = 0, hi = distinct - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (largestGroup(groups(outOffsets, outTargets, minDelay, candidates[mid])) <= cap) lo = mid;
+            else hi = mid - 1;
+        }
+        int[] group = groups(outOffsets, outTargets, minDelay, candidates[lo]);
+
+        // Breadth first order of the nodes; each group goes where its first node comes up
+        int[] order = new int[n];
+        boolean[] seen = new boolean[n];
+        int head = 0, tail = 0;
+        for (int s = 0; s < n; s++) {
+            if (seen[s]) continue;
+            seen[s] = true;
+            order[tail++] = s;
+            while (head < tail) {
+                int u = order[head++];
+                for (int e = outOffsets[u]; e < outOffsets[u+1]; e++) {
+                    int v = outTargets[e];
+                    if (!seen[v]) {
+                        seen[v] = true;
+                        order[tail++] = v;
+                    }
+                }
+            }
+        }
+        int[] size = new int[n];
+        for (int v = 0; v < n; v++) size[group[v]]++;
+        int[] groupPart = new int[n];
+        Arrays.fill(groupPart, -1);
+        long placed = 0;
+        for (int v: order) {
+            int g = group[v];
+            if (groupPart[g] >= 0) continue;
+            // The partition covering the middle of this group, if the nodes were laid out in a line
+            groupPart[g] = (int) Math.min(parts - 1, (placed + size[g] / 2) * parts / n);
+            placed += size[g];
+        }
+        for (int v = 0; v < n; v++) result[v] = groupPart[group[v]];
+        return result;
+    }
+
+    // Merge the ends of every link shorter than the lookahead: returns each node's group (union-find root)
+    private static int[] groups(int[] outOffsets, int[] outTargets, long[] minDelay, long lookahead) {
+        int n = outOffsets.length - 1;
+        int[] parent = new int[n];
+        for (int v = 0; v < n; v++) parent[v] = v;
+        for (int u = 0; u < n; u++) {
+            for (int e = outOffsets[u]; e < outOffsets[u+1]; e++) {
+                if (minDelay[e] >= lookahead) continue;
+                int a = find(parent, u), b = find(parent, outTargets[e]);
+                if (a != b) parent[Math.max(a, b)] = Math.min(a, b);
+            }
+        }
+        for (int v = 0; v < n; v++) parent[v] = find(parent, v);
+        return parent;
+    }
+
+    private static int find(int[] parent, int v) {
+        while (parent[v] != v) {
+            parent[v] = parent[parent[v]];  // Path halving
+            v = parent[v];
+        }
+        return v;
+    }
+
+    private static int largestGroup(int[] group) {
+        int[] size = new int[group.length];
+        int largest = 0;
+        for (int g: group) largest = Math.max(largest, ++size[g]);
+        return largest;
+    }
+
+    /**
+     * Hand the routers to their partitions' workers.  They must be steppable (see Router.process).
+     **/
+    void start(Router[] routers) {
+        for (int v = 0; v < routers.length; v++) {
+            Router r = routers[v];
+            if (!r.isSteppable()) {
+                throw new IllegalArgumentException("Router " + r.nsap + " has its own run loop and can not be run in parallel.");
+            }
+            Partition p = partitions[partitionOf[v]];
+            callbacks[v] = () -> p.ready.add(r);
+            p.ready.add(r);
+        }
+    }
+
+    /**
+     * The current time: the caller's partition clock on a worker, the common clock otherwise
+     **/
+    public long now() {
+        Thread t = Thread.currentThread();
+        if (t instanceof Worker && ((Worker) t).owner() == this) return ((Worker) t).partition.now;
+        return now;
+    }
+
+    /**
+     * Run the action at the given time, in the partition of the given node.
+     * Events ordered by (time, kind, id), so give each its proper kind and id.
+     **/
+    void schedule(int node, long time, int kind, int id, Runnable action) {
+        schedulePartition(partitionOf[node], time, kind, id, action);
+    }
+
+    void schedulePartition(int partition, long time, int kind, int id, Runnable action) {
+        Partition p = partitions[partition];
+        Event e = new Event(time, ((long) kind << 32) | (id & 0xFFFFFFFFL), action);
+        Thread t = Thread.currentThread();
+        if (t instanceof Worker && ((Worker) t).partition == p) p.add(e);
+        else p.inbox.add(e);  // Another partition's (it is for a later window) or the caller's between runs
+    }
+
+    /**
+     * Run every event up to (and including) the given time, then leave all the clocks there
+     **/
+    public void runUntil(long endTime) {
+        if (workers == null) {
+            workers = new Worker[partitions.length];
+            windowBarrier = new CyclicBarrier(partitions.length, this::nextWindow);
+            runBarrier = new CyclicBarrier(partitions.length + 1);
+            for (int i = 0; i < partitions.length; i++) {
+                workers[i] = new Worker(partitions[i]);
+                workers[i].start();
+            }
+        }
+        this.endTime = endTime;
+        nextWindow();
+        if (!finished) {
+            try {
+                runBarrier.await();  // Go
+                runBarrier.await();  // Wait until they are done
+            } catch (InterruptedException | BrokenBarrierException e) {
+                return;
+            }
+        }
+        for (Partition p: partitions) {
+            if (p.now < endTime) p.now = endTime;
+        }
+        if (now < endTime) now = endTime;
+    }
+
+    /** Advance the clock by the given number of milliseconds, firing events along the way **/
+    public void advance(long length) {
+        runUntil(now + length);
+    }
+
+    /**
+     * Set up the next window: from the earliest thing to do anywhere, lookahead ms long.
+     * Runs while every worker waits (at a barrier), so it may touch all the partitions.
+     **/
+    private void nextWindow() {
+        long start = Long.MAX_VALUE;
+        for (Partition p: partitions) {
+            p.drainInbox();
+            if (!p.ready.isEmpty()) start = Math.min(start, p.now);
+            if (!p.events.isEmpty()) start = Math.min(start, p.events.peek().time);
+        }
+        if (start > endTime) {
+            finished = true;
+            return;
+        }
+        finished = false;
+        windowEnd = lookahead > endTime + 1 - start ? endTime + 1 : start + lookahead;
+        windows++;
+    }
+
+    /** Stop the workers (the simulation can not be run any further) **/
+    public void shutdown() {
+        stopped = true;
+        if (workers != null) {
+            for (Worker w: workers) w.interrupt();
+        }
+    }
+
+    public int getPartitionCount() { return partitions.length; }
+    public int getPartition(int node) { return partitionOf[node]; }
+    public long getLookahead() { return lookahead; }
+    public long getWindows() { return windows; }
+}
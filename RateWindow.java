@@ -0,0 +1,64 @@
+/***************
+ * RateWindow
+ *
+ * Counts events in one second buckets over a sliding window of the last few
+ * seconds, so rates reflect what the network is doing now rather than since
+ * the start.  Fixed memory.  Not thread safe - callers lock or merge copies.
+ ***************/
+
+public class RateWindow {
+    private long[] counts;    // Events counted in each second
+    private long[] seconds;   // Which second each bucket currently holds
+    private long firstSecond; // First second anything was counted (-1 = nothing yet)
+
+    public RateWindow(int windowSeconds) {
+        counts = new long[windowSeconds];
+        seconds = new long[windowSeconds];
+        java.util.Arrays.fill(seconds, -1);
+        firstSecond = -1;
+    }
+
+    /** Count n events happening at the given time (ms) **/
+    public void add(long time, long n) {
+        long second = time / 1000;
+        int slot = (int) (second % counts.length);
+        if (seconds[slot] != second) {
+            seconds[slot] = second;
+            counts[slot] = 0;
+        }
+        counts[slot] += n;
+        if (firstSecond < 0) firstSecond = second;
+    }
+
+    /** Add the counts of another window (same size) to this one **/
+    public void add(RateWindow other) {
+        for (int i = 0; i < counts.length; i++) {
+            if (other.seconds[i] < 0) continue;
+            if (seconds[i] == other.seconds[i]) counts[i] += other.counts[i];
+            else if (seconds[i] < other.seconds[i]) {
+                seconds[i] = other.seconds[i];
+                counts[i] = other.counts[i];
+            }
+        }
+        if (firstSecond < 0 || (other.firstSecond >= 0 && other.firstSecond < firstSecond)) firstSecond = other.firstSecond;
+    }
+
+    public RateWindow copy() {
+        RateWindow res = new RateWindow(counts.length);
+        res.add(this);
+        return res;
+    }
+
+    /** Events per second over the window ending at the given time (ms) **/
+    public double getRate(long time) {
+        if (firstSecond < 0) return 0;
+        long second = time / 1000;
+        long sum = 0;
+        for (int i = 0; i < counts.length; i++) {
+            if (seconds[i] > second - counts.length && seconds[i] <= second) sum += counts[i];
+        }
+        // Early on, the window only covers the time since counting started
+        long span = Math.min(counts.length, second - firstSecond + 1);
+        return span > 0 ? (double) sum / span : 0;
+    }
+}
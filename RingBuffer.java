@@ -0,0 +1,92 @@
+/***************
+ * RingBuffer
+ *
+ * A bounded, lock-free queue for many producers and a single consumer.
+ * Used for the NIC queues: any number of links may add packets while only the
+ * router takes them off.  Every slot carries a sequence number that says whether
+ * it is free for the producer claiming that position or full for the consumer,
+ * so neither side needs a lock and the capacity check is O(1).
+ * Items that do not fit are dropped and counted.
+ ***************/
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class RingBuffer<E> {
+    private final Object[] items;           // The slots (length is a power of two)
+    private final AtomicLongArray sequence; // Per slot: == position when free to fill, == position+1 when full
+    private final int mask;                 // items.length - 1
+    private final int capacity;             // Maximum number of items held at once
+    private final AtomicLong tail;          // Next position producers will claim
+    private volatile long head;             // Next position the consumer will take
+    private final AtomicLong dropped;       // Items refused because the buffer was full
+
+    public RingBuffer(int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) size <<= 1;
+        this.items = new Object[size];
+        this.sequence = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) sequence.set(i, i);
+        this.mask = size - 1;
+        this.capacity = capacity;
+        this.tail = new AtomicLong(0);
+        this.head = 0;
+        this.dropped = new AtomicLong(0);
+    }
+
+    /**
+     * Add an item (any thread).
+     * @returns false (and counts a drop) if the buffer is full
+     **/
+    public boolean offer(E item) {
+        while (true) {
+            long pos = tail.get();
+            int slot = (int) pos & mask;
+            long diff = sequence.get(slot) - pos;
+            if (diff == 0) {
+                // Slot is free for this position - claim it, unless we are already at capacity
+                if (pos - head >= capacity) break;
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    items[slot] = item;
+                    sequence.lazySet(slot, pos + 1);  // Publish to the consumer
+                    return true;
+                }
+            } else if (diff < 0) {
+                break;  // The consumer has not emptied this slot yet: full
+            }
+            // Otherwise another producer got this position first - try again
+        }
+        dropped.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Take the oldest item (the single consumer only).
+     * @returns the item or null if empty
+     **/
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        long pos = head;
+        int slot = (int) pos & mask;
+        if (sequence.get(slot) != pos + 1) return null;  // Not filled (yet)
+        E item = (E) items[slot];
+        items[slot] = null;
+        sequence.lazySet(slot, pos + mask + 1);  // Free for the producer one lap later
+        head = pos + 1;
+        return item;
+    }
+
+    /** True if there is nothing to take (consumer's view) **/
+    public boolean isEmpty() {
+        long pos = head;
+        return sequence.get((int) pos & mask) != pos + 1;
+    }
+
+    /** Number of items currently held (approximate while producers are busy) **/
+    public int size() {
+        return (int) Math.max(0, Math.min(tail.get() - head, capacity));
+    }
+
+    public int getCapacity() { return capacity; }
+    public long getDropped() { return dropped.get(); }
+}
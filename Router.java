@@ -10,6 +10,13 @@ public abstract class Router extends Thread {
     public static abstract class Generator {
         public abstract Router createRouter(int id, NetworkInterface nic);
     }
+
+    // How the network runs the router loops
+    public enum Scheduling {
+        PLATFORM,  // One OS thread per router
+        VIRTUAL,   // One virtual thread per router (Java 21+, otherwise falls back to POOLED)
+        POOLED     // Each router's work runs as tasks on a small shared pool of threads
+    }
     
     protected int nsap;   // The NSAP (ID) of this node
     protected NetworkInterface nic;  // The routers "access" to the network
@@ -18,4 +25,36 @@ public abstract class Router extends Thread {
         this.nsap = nsap;
         this.nic = nic;
     }
+
+    /**
+     * Do one round of work: check the NIC queues and process whatever is waiting.
+     * Routers that implement this (instead of their own run loop) can be run on a shared pool -
+     * they say so by overriding isSteppable() too.
+     * @returns true if something was processed, false if there was nothing to do
+     **/
+    protected boolean process() {
+        return false;
+    }
+
+    /**
+     * True if the router does all its work through process(), so it can be stepped by a pool
+     * (or the parallel simulator) instead of running its own thread.  Routers opt in by overriding this.
+     **/
+    public boolean isSteppable() {
+        return false;
+    }
+
+    public void run() {
+        try {
+            while (!nic.isShutdown()) {
+                if (!process()) {
+                    // Didn't do anything, so wait until there is something to do
+                    nic.awaitWork();
+                }
+            }
+        } catch (RuntimeException e) {
+            nic.retire();  // The router is dead - don't let the simulator wait on it
+            throw e;
+        }
+    }
 }
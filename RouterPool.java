@@ -0,0 +1,75 @@
+/***************
+ * RouterPool
+ *
+ * Runs routers as tasks on a small, fixed set of threads instead of one thread per router.
+ * Each task steps its router a bounded number of times and then gives the thread up,
+ * so thousands of routers can share a handful of cores.
+ ***************/
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class RouterPool {
+    private static final int BATCH_SIZE = 64;   // Steps a router may take before yielding its thread
+
+    private ExecutorService executor;
+    private Debug debug;
+
+    public RouterPool() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public RouterPool(int threads) {
+        this(threads, Debug.getInstance());
+    }
+
+    public RouterPool(int threads, Debug debug) {
+        this.debug = debug;
+        executor = Executors.newFixedThreadPool(threads, r -> {
+                Thread t = new Thread(r, "RouterPool");
+                t.setDaemon(true);  // Like the router threads - don't keep the program alive
+                return t;
+            });
+    }
+
+    /**
+     * Start running the given router on this pool.  The router must be steppable.
+     **/
+    public void start(Router r) {
+        if (!r.isSteppable()) {
+            throw new IllegalArgumentException("Router " + r.nsap + " has its own run loop and can not be pooled.");
+        }
+        executor.execute(new Task(r));
+    }
+
+    public void shutdown() { executor.shutdownNow(); }
+
+    private class Task implements Runnable {
+        Router r;
+        Runnable resubmit;   // Puts this task back on the pool when the NIC has work
+
+        Task(Router r) {
+            this.r = r;
+            this.resubmit = () -> executor.execute(this);
+        }
+
+        public void run() {
+            if (r.nic.isShutdown()) return;  // The network is finished
+            try {
+                for (int i = 0; i < BATCH_SIZE; i++) {
+                    if (!r.process()) {
+                        // Nothing to do, so give up the thread until the NIC calls us back
+                        if (!r.nic.onWork(resubmit)) {
+                            executor.execute(this);  // Work showed up in the meantime
+                        }
+                        return;
+                    }
+                }
+                executor.execute(this);  // Still busy, but let the other routers have a turn
+            } catch (RuntimeException e) {
+                // Same as an uncaught exception killing a router thread
+                debug.println(0, "Router " + r.nsap + " stopped: " + e);
+                r.nic.retire();
+            }
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/***************
+ * ShortestPathBenchmark
+ *
+ * Times LinkStateRouter's shortest path computation on random networks:
+ * the original version (a scan of the whole working table for every step),
+ * a full Dijkstra with the indexed heap, and an incremental update after one
+ * link cost changes.
+ * Usage: java ShortestPathBenchmark [nodes ...]      (default: 100 1000 10000)
+ ***************/
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+public class ShortestPathBenchmark {
+    static final int DEGREE = 4;            // Outgoing links per node
+    static final long TIME_BUDGET = 2000;   // Roughly how long to time each version (ms)
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = {100, 1000, 10000};
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++) sizes[i] = Integer.parseInt(args[i]);
+        }
+        Debug.getInstance().setLevel(0);
+        System.out.printf("%8s %8s %12s %12s %12s %10s%n", "Nodes", "Links", "Scan (ms)", "Heap (ms)", "Incr (ms)", "Settled");
+        checkZeroCost();
+        for (int n: sizes) run(n, new Random(n));
+    }
+
+    private static void run(int n, Random rand) throws Exception {
+        // A ring (so every node is reachable) plus random links
+        Topology t = new Topology(n, n * DEGREE);
+        for (int i = 0; i < n; i++) t.nsap[i] = i + 1;
+        int e = 0;
+        for (int i = 0; i < n; i++) {
+            for (int d = 0; d < DEGREE; d++) {
+                t.edgeSource[e] = i + 1;
+                t.edgeDest[e] = (d == 0 ? (i + 1) % n : rand.nextInt(n)) + 1;
+                t.meanSpeed[e] = 1 + rand.nextInt(100);
+                e++;
+            }
+        }
+        Network net = new Network();
+        net.loadNetwork(t);
+
+        // One router, with a complete link state table
+        ArrayList<Integer> outgoing = new ArrayList<>();
+        for (int d = 0; d < DEGREE; d++) outgoing.add(t.edgeDest[d]);
+        NetworkInterface nic = new NetworkInterface(net, 1, outgoing, new ArrayList<>(), 100);
+        LinkStateRouter router = new LinkStateRouter(1, nic);
+        Map<Integer, Map<Integer, Long>> costs = new HashMap<>();
+        for (int i = 0; i < t.edgeCount; i++) {
+            costs.computeIfAbsent(t.edgeSource[i], k -> new HashMap<>())
+                .merge(t.edgeDest[i], (long) t.meanSpeed[i], Math::min);
+        }
+        costs.forEach(router::setLinkState);
+        router.findShortestPaths();
+        check(router, nic);
+
+        double scan = time(() -> scanShortestPaths(1, router.linkStateTable));
+        double heap = time(router.spt::recompute);
+
+        // One link cost moves a little at a time
+        long settledBefore = router.spt.getSettled();
+        long updatesBefore = router.spt.getIncrementalUpdates() + router.spt.getFullUpdates();
+        double incremental = time(() -> {
+                int u = 1 + rand.nextInt(n);
+                Map<Integer, Long> links = new HashMap<>(router.linkStateTable.get(u));
+                Integer v = links.keySet().iterator().next();
+                links.put(v, Math.max(1, links.get(v) + rand.nextInt(21) - 10));
+                router.setLinkState(u, links);
+                router.findShortestPaths();
+            });
+        long updates = router.spt.getIncrementalUpdates() + router.spt.getFullUpdates() - updatesBefore;
+        double settled = (double) (router.spt.getSettled() - settledBefore) / Math.max(1, updates);
+        check(router, nic);
+
+        // Links that cost nothing (sub-ms links in discrete event mode) - ties in the heap
+        for (int i = 0; i < 1000; i++) {
+            int u = 1 + rand.nextInt(n);
+            Map<Integer, Long> links = new HashMap<>(router.linkStateTable.get(u));
+            Integer v = links.keySet().iterator().next();
+            links.put(v, rand.nextInt(4) == 0 ? 0 : Math.max(0, links.get(v) + rand.nextInt(21) - 10));
+            router.setLinkState(u, links);
+            router.findShortestPaths();
+        }
+        check(router, nic);
+        System.out.printf("%8d %8d %12.3f %12.3f %12.4f %10.1f%n", n, t.edgeCount, scan, heap, incremental, settled);
+    }
+
+    // The router's tree must agree with the original algorithm on every distance
+    private static void check(LinkStateRouter router, NetworkInterface nic) {
+        Map<Integer, DLPair> expected = scanShortestPaths(1, router.linkStateTable);
+        for (int v = 0; v < nic.getNodeCount(); v++) {
+            DLPair info = expected.get(nic.getNodeId(v));
+            long distance = info == null ? ShortestPathTree.INFINITY : info.distance;
+            if (router.spt.getDistance(v) != distance) {
+                throw new IllegalStateException("Distance to " + nic.getNodeId(v) + " differs");
+            }
+        }
+        checkFirstHops(router.spt);
+    }
+
+    // Every reachable node's first hop must be where its path from the root (by parents) starts
+    private static void checkFirstHops(ShortestPathTree spt) {
+        int root = spt.getRoot();
+        for (int v = 0; v < spt.getNodeCount(); v++) {
+            if (v == root || !spt.isReachable(v)) continue;
+            int hop = v;
+            while (spt.getParent(hop) != root) hop = spt.getParent(hop);
+            if (spt.getFirstHop(v) != hop) {
+                throw new IllegalStateException("First hop to " + v + " is " + spt.getFirstHop(v) + ", not " + hop);
+            }
+        }
+    }
+
+    // A link lowered to cost 0 behind a node lowered in the same update (the child ties its parent in the heap)
+    private static void checkZeroCost() {
+        ShortestPathTree spt = new ShortestPathTree(4, 0);
+        spt.setLinks(3, new int[] {1}, new long[] {2});
+        spt.update();
+        spt.setLinks(0, new int[] {2, 3}, new long[] {0, 0});
+        spt.setLinks(3, new int[] {1}, new long[] {0});
+        spt.update();
+        if (spt.getDistance(1) != 0) throw new IllegalStateException("Distance to 1 is " + spt.getDistance(1) + ", not 0");
+        checkFirstHops(spt);
+    }
+
+    // Average time (ms) of one run, after a warm up
+    private static double time(Runnable task) {
+        long end = System.nanoTime() + TIME_BUDGET * 500000L;
+        while (System.nanoTime() < end) task.run();  // Warm up (half the budget)
+        int runs = 0;
+        long start = System.nanoTime();
+        end = start + TIME_BUDGET * 500000L;
+        do {
+            task.run();
+            runs++;
+        } while (System.nanoTime() < end);
+        return (System.nanoTime() - start) / 1e6 / runs;
+    }
+
+    // Distance/Link Pair (DL Pair) - the original algorithm's table entry
+    private static class DLPair {
+        long distance;
+        int link;
+
+        DLPair(long distance, int link) {
+            this.distance = distance;
+            this.link = link;
+        }
+    }
+
+    /**
+     * The original findShortestPaths: a linear scan of the working table for the closest node
+     **/
+    static Map<Integer, DLPair> scanShortestPaths(int source, Map<Integer, Map<Integer, Long>> linkStateTable) {
+        Map<Integer, DLPair> workingTable = new HashMap<>();
+        Map<Integer, DLPair> finalTable = new HashMap<>();
+        workingTable.put(source, new DLPair(0, -1));
+        while (!workingTable.isEmpty()) {
+            Map.Entry<Integer, DLPair> min = null;
+            for (Map.Entry<Integer, DLPair> entry : workingTable.entrySet()) {
+                if (min == null || entry.getValue().distance < min.getValue().distance) {
+                    min = entry;
+                }
+            }
+            int nsapU = min.getKey();
+            DLPair infoU = min.getValue();
+            finalTable.put(nsapU, infoU);
+            workingTable.remove(nsapU);
+            Map<Integer, Long> links = linkStateTable.get(nsapU);
+            if (links == null) return finalTable;
+            Set<Integer> linksU = links.keySet();
+            for (Integer nsapV : linksU) {
+                long distanceV = links.get(nsapV) + infoU.distance;
+                if (!finalTable.containsKey(nsapV)) {
+                    DLPair currentInfoV = workingTable.get(nsapV);
+                    if (currentInfoV == null || distanceV < currentInfoV.distance) {
+                        workingTable.put(nsapV, new DLPair(distanceV, infoU.link == -1 ? nsapV : infoU.link));
+                    }
+                }
+            }
+        }
+        return finalTable;
+    }
+}
@@ -0,0 +1,392 @@
+/***************
+ * ShortestPathTree
+ *
+ * A shortest path tree from one root node, kept up to date as link costs change
+ * (a dynamic SPT).  Nodes are dense indexes 0 .. n-1.  Each node's outgoing links
+ * are set as a whole with setLinks() (as a link state advertisement arrives);
+ * the tree only changes when update() is called.
+ *
+ * update() does not rerun Dijkstra over the whole network.  A link that got
+ * worse only matters if it is in the tree: the subtree hanging below it is cut
+ * off and re-attached using the best links into it from the rest of the tree.
+ * A link that got better only matters if it gives a shorter path: the
+ * improvement is pushed outwards from there.  So the work done is proportional
+ * to the part of the tree that actually changes.  Past CHANGE_FRACTION of the
+ * links changing at once, a full recomputation is cheaper and is done instead.
+ ***************/
+import java.util.Arrays;
+
+public class ShortestPathTree {
+    public static final long INFINITY = Long.MAX_VALUE;
+    private static final int MIN_CHANGE_LIMIT = 16;  // Always go incremental for this many link changes
+    private static final int CHANGE_FRACTION = 8;    // Full recomputation once more than 1/8 of the links change
+
+    private int n;       // Number of nodes
+    private int root;    // The node the tree grows from
+
+    // The graph: each node's outgoing links (as last set) and the incoming links that mirror them
+    private int[][] outTarget;
+    private long[][] outCost;
+    private int[][] inSource;
+    private long[][] inCost;
+    private int[] inCount;
+    private int linkCount;
+
+    // Link changes since the last update: (from, to, old cost, new cost), INFINITY = no link
+    private int[] changeFrom;
+    private int[] changeTo;
+    private long[] changeOld;
+    private long[] changeNew;
+    private int changeCount;
+    private boolean needFull;   // Next update must recompute everything
+
+    // The tree
+    private long[] dist;        // Distance from the root (INFINITY = unreachable)
+    private int[] parent;       // Previous node on the path from the root (-1 for the root/unreachable)
+    private int[] firstHop;     // The root's neighbor the path starts with (-1 for the root/unreachable)
+    private int[] firstChild;   // Children of each node, as a doubly linked list
+    private int[] nextSibling;
+    private int[] prevSibling;
+
+    // Scratch space, reused by every update
+    private IndexedMinHeap heap;    // Nodes whose distance is being (re)settled
+    private int[] pendingParent;    // Parent that gives a node its tentative distance
+    private boolean[] affected;     // Node was cut off from the tree by a worse link
+    private int[] affectedList;
+    private int affectedCount;
+    private boolean[] touchedFlag;  // Node's distance or first hop may have changed in the last update
+    private int[] touchedList;
+    private int touchedCount;
+    private int[] seen;             // For comparing old and new links (stamped, so never cleared)
+    private long[] seenCost;
+    private int stamp;
+
+    // Statistics
+    private long fullUpdates;
+    private long incrementalUpdates;
+    private long settled;          // Nodes (re)settled over all updates
+
+    public ShortestPathTree(int n, int root) {
+        this.n = n;
+        this.root = root;
+        outTarget = new int[n][];
+        outCost = new long[n][];
+        inSource = new int[n][];
+        inCost = new long[n][];
+        inCount = new int[n];
+        int[] none = new int[0];
+        long[] noCosts = new long[0];
+        Arrays.fill(outTarget, none);
+        Arrays.fill(outCost, noCosts);
+        Arrays.fill(inSource, none);
+        Arrays.fill(inCost, noCosts);
+        linkCount = 0;
+
+        changeFrom = new int[MIN_CHANGE_LIMIT];
+        changeTo = new int[MIN_CHANGE_LIMIT];
+        changeOld = new long[MIN_CHANGE_LIMIT];
+        changeNew = new long[MIN_CHANGE_LIMIT];
+        changeCount = 0;
+        needFull = true;
+
+        dist = new long[n];
+        parent = new int[n];
+        firstHop = new int[n];
+        firstChild = new int[n];
+        nextSibling = new int[n];
+        prevSibling = new int[n];
+        heap = new IndexedMinHeap(n);
+        pendingParent = new int[n];
+        affected = new boolean[n];
+        affectedList = new int[n];
+        touchedFlag = new boolean[n];
+        touchedList = new int[n];
+        seen = new int[n];
+        seenCost = new long[n];
+        stamp = 0;
+    }
+
+    /**
+     * Replace node u's outgoing links.  The arrays (dense targets and their costs) are kept,
+     * so the caller must not change them afterwards.
+     * @returns true if anything differs from the links u had before
+     **/
+    public boolean setLinks(int u, int[] targets, long[] costs) {
+        int[] oldTargets = outTarget[u];
+        long[] oldCosts = outCost[u];
+        stamp += 2;
+        if (stamp < 0) {  // Wrapped - start the stamps over
+            Arrays.fill(seen, 0);
+            stamp = 2;
+        }
+        int before = changeCount;
+        for (int i = 0; i < oldTargets.length; i++) {
+            seen[oldTargets[i]] = stamp;
+            seenCost[oldTargets[i]] = oldCosts[i];
+        }
+        for (int i = 0; i < targets.length; i++) {
+            int v = targets[i];
+            if (seen[v] == stamp) {
+                seen[v] = stamp + 1;  // Still there
+                if (seenCost[v] != costs[i]) {
+                    setIncoming(v, u, costs[i]);
+                    recordChange(u, v, seenCost[v], costs[i]);
+                }
+            } else if (seen[v] != stamp + 1) {
+                addIncoming(v, u, costs[i]);
+                recordChange(u, v, INFINITY, costs[i]);
+                linkCount++;
+            }
+        }
+        for (int i = 0; i < oldTargets.length; i++) {
+            int v = oldTargets[i];
+            if (seen[v] == stamp) {  // Not in the new links
+                removeIncoming(v, u);
+                recordChange(u, v, oldCosts[i], INFINITY);
+                linkCount--;
+            }
+        }
+        outTarget[u] = targets;
+        outCost[u] = costs;
+        return changeCount != before;
+    }
+
+    private void recordChange(int u, int v, long oldCost, long newCost) {
+        if (needFull) return;  // Everything gets recomputed anyway
+        if (changeCount == changeFrom.length) {
+            if (changeCount > Math.max(MIN_CHANGE_LIMIT, linkCount / CHANGE_FRACTION)) {
+                needFull = true;  // Too many to be worth tracking
+                changeCount = 0;
+                return;
+            }
+            int size = changeCount * 2;
+            changeFrom = Arrays.copyOf(changeFrom, size);
+            changeTo = Arrays.copyOf(changeTo, size);
+            changeOld = Arrays.copyOf(changeOld, size);
+            changeNew = Arrays.copyOf(changeNew, size);
+        }
+        changeFrom[changeCount] = u;
+        changeTo[changeCount] = v;
+        changeOld[changeCount] = oldCost;
+        changeNew[changeCount] = newCost;
+        changeCount++;
+    }
+
+    private void addIncoming(int v, int u, long cost) {
+        int c = inCount[v];
+        if (c == inSource[v].length) {
+            inSource[v] = Arrays.copyOf(inSource[v], Math.max(4, c * 2));
+            inCost[v] = Arrays.copyOf(inCost[v], Math.max(4, c * 2));
+        }
+        inSource[v][c] = u;
+        inCost[v][c] = cost;
+        inCount[v] = c + 1;
+    }
+
+    private void setIncoming(int v, int u, long cost) {
+        for (int i = 0; i < inCount[v]; i++) {
+            if (inSource[v][i] == u) {
+                inCost[v][i] = cost;
+                return;
+            }
+        }
+    }
+
+    private void removeIncoming(int v, int u) {
+        int c = inCount[v];
+        for (int i = 0; i < c; i++) {
+            if (inSource[v][i] == u) {
+                inSource[v][i] = inSource[v][c-1];
+                inCost[v][i] = inCost[v][c-1];
+                inCount[v] = c - 1;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Bring the tree up to date with the links set since the last update
+     * (incrementally unless too much changed).
+     * @returns true if any node's distance or first hop may have changed - see getTouched()
+     *          (nodes stay touched, across updates, until clearTouched())
+     **/
+    public boolean update() {
+        if (needFull || changeCount > Math.max(MIN_CHANGE_LIMIT, linkCount / CHANGE_FRACTION)) {
+            recompute();
+            return true;
+        }
+        if (changeCount == 0) return false;
+        incrementalUpdates++;
+        heap.clear();
+
+        // 1. Worse (or removed) tree links: cut off the subtree below them
+        affectedCount = 0;
+        for (int i = 0; i < changeCount; i++) {
+            int v = changeTo[i];
+            if (changeNew[i] > changeOld[i] && parent[v] == changeFrom[i] && !affected[v]) {
+                cutSubtree(v);
+            }
+        }
+        // 2. Re-attach the cut off nodes using their best link from the rest of the tree
+        for (int i = 0; i < affectedCount; i++) {
+            int x = affectedList[i];
+            for (int j = 0; j < inCount[x]; j++) {
+                int p = inSource[x][j];
+                if (!affected[p]) propose(x, p, inCost[x][j]);
+            }
+        }
+        // 3. Better (or new) links that give a shorter path
+        //    (at their current cost - a link may have changed again, or gone, since).
+        //    Only from settled nodes: one whose distance was just lowered relaxes its links when it
+        //    settles, and proposing through it now could let a child settle first (a zero cost link
+        //    ties them) and copy its parent's out of date first hop.
+        for (int i = 0; i < changeCount; i++) {
+            int u = changeFrom[i];
+            if (changeNew[i] < changeOld[i] && !affected[u] && !heap.contains(u)) propose(changeTo[i], u, cost(u, changeTo[i]));
+        }
+        changeCount = 0;
+
+        // 4. Settle everything proposed (and whatever that improves in turn)
+        settle();
+        for (int i = 0; i < affectedCount; i++) {
+            int x = affectedList[i];
+            affected[x] = false;
+            touch(x);  // Possibly now unreachable
+        }
+        return touchedCount > 0;
+    }
+
+    /**
+     * Recompute the whole tree from scratch (plain Dijkstra)
+     **/
+    public void recompute() {
+        fullUpdates++;
+        needFull = false;
+        changeCount = 0;
+        heap.clear();
+        Arrays.fill(dist, INFINITY);
+        Arrays.fill(parent, -1);
+        Arrays.fill(firstHop, -1);
+        Arrays.fill(firstChild, -1);
+        Arrays.fill(nextSibling, -1);
+        Arrays.fill(prevSibling, -1);
+        dist[root] = 0;
+        pendingParent[root] = -1;
+        heap.offer(root, 0);
+        settle();
+        clearTouched();
+        for (int v = 0; v < n; v++) touch(v);
+    }
+
+    // The current cost of the link u->v (INFINITY if there is none)
+    private long cost(int u, int v) {
+        int[] targets = outTarget[u];
+        for (int i = 0; i < targets.length; i++) {
+            if (targets[i] == v) return outCost[u][i];
+        }
+        return INFINITY;
+    }
+
+    // Offer node x a path through p (with the link p->x of the given cost)
+    private void propose(int x, int p, long cost) {
+        if (dist[p] == INFINITY || cost == INFINITY) return;
+        long d = dist[p] + cost;
+        if (d < dist[x]) {
+            dist[x] = d;
+            pendingParent[x] = p;
+            heap.offer(x, d);
+        }
+    }
+
+    // Dijkstra over the nodes in the heap: settle each one and relax its links
+    private void settle() {
+        while (!heap.isEmpty()) {
+            int x = heap.poll();
+            settled++;
+            int p = pendingParent[x];
+            if (parent[x] != p) {
+                if (parent[x] >= 0) unlink(x);
+                if (p >= 0) link(p, x);
+            }
+            firstHop[x] = p < 0 ? -1 : (p == root ? x : firstHop[p]);
+            touch(x);
+            int[] targets = outTarget[x];
+            long[] costs = outCost[x];
+            for (int i = 0; i < targets.length; i++) propose(targets[i], x, costs[i]);
+        }
+    }
+
+    // Cut node v and everything below it out of the tree
+    private void cutSubtree(int v) {
+        if (parent[v] >= 0) unlink(v);
+        int start = affectedCount;
+        affected[v] = true;
+        affectedList[affectedCount++] = v;
+        for (int i = start; i < affectedCount; i++) {
+            int x = affectedList[i];
+            for (int c = firstChild[x]; c >= 0; c = nextSibling[c]) {
+                if (!affected[c]) {
+                    affected[c] = true;
+                    affectedList[affectedCount++] = c;
+                }
+            }
+        }
+        for (int i = start; i < affectedCount; i++) {
+            int x = affectedList[i];
+            dist[x] = INFINITY;
+            parent[x] = -1;
+            firstHop[x] = -1;
+            firstChild[x] = -1;
+            nextSibling[x] = -1;
+            prevSibling[x] = -1;
+        }
+    }
+
+    private void link(int p, int x) {
+        parent[x] = p;
+        prevSibling[x] = -1;
+        nextSibling[x] = firstChild[p];
+        if (firstChild[p] >= 0) prevSibling[firstChild[p]] = x;
+        firstChild[p] = x;
+    }
+
+    private void unlink(int x) {
+        int p = parent[x];
+        if (prevSibling[x] >= 0) nextSibling[prevSibling[x]] = nextSibling[x];
+        else firstChild[p] = nextSibling[x];
+        if (nextSibling[x] >= 0) prevSibling[nextSibling[x]] = prevSibling[x];
+        parent[x] = -1;
+        nextSibling[x] = -1;
+        prevSibling[x] = -1;
+    }
+
+    private void touch(int x) {
+        if (!touchedFlag[x]) {
+            touchedFlag[x] = true;
+            touchedList[touchedCount++] = x;
+        }
+    }
+
+    /**
+     * The nodes changed by the last update (call clearTouched() when done with them)
+     **/
+    public int getTouchedCount() { return touchedCount; }
+    public int getTouched(int i) { return touchedList[i]; }
+    public void clearTouched() {
+        for (int i = 0; i < touchedCount; i++) touchedFlag[touchedList[i]] = false;
+        touchedCount = 0;
+    }
+
+    public int getRoot() { return root; }
+    public int getNodeCount() { return n; }
+    public int getLinkCount() { return linkCount; }
+    public boolean isReachable(int v) { return dist[v] != INFINITY; }
+    public long getDistance(int v) { return dist[v]; }
+    public int getParent(int v) { return parent[v]; }
+    /** The root's neighbor that the shortest path to v starts with (-1 for the root or if unreachable) **/
+    public int getFirstHop(int v) { return firstHop[v]; }
+
+    public long getFullUpdates() { return fullUpdates; }
+    public long getIncrementalUpdates() { return incrementalUpdates; }
+    public long getSettled() { return settled; }
+}
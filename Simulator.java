@@ -0,0 +1,171 @@
+/***************
+ * Simulator
+ *
+ * A discrete event engine for the Network.  Keeps a virtual clock (in milliseconds)
+ * and a queue of events ordered by their virtual timestamp.  The clock only moves
+ * forward once every router has gone idle, so a simulated run no longer depends on
+ * wall-clock sleeps or on how the OS schedules the router threads.
+ *
+ * Events at the same time fire in (kind, id) order - the kinds and ids of ParallelSimulator -
+ * rather than in the order they were scheduled, which depends on which router thread got
+ * there first.  And the routers only hear about them once they have all fired, so no router
+ * sees half of them.  So the same seed gives the same run.
+ ***************/
+import java.util.ArrayList;
+import java.util.PriorityQueue;
+
+public class Simulator {
+    // How long (real ms) to wait for routers to go idle before moving on anyway
+    private static final long QUIESCENCE_TIMEOUT = 1000;
+
+    private static class Event implements Comparable<Event> {
+        long time;        // Virtual time at which the event fires
+        long key;         // Kind and id - orders events at the same time however the threads ran
+        long seq;         // Last tie breaker so events with the same key fire in the order scheduled
+        Runnable action;  // What to do when the event fires
+
+        Event(long time, long key, long seq, Runnable action) {
+            this.time = time;
+            this.key = key;
+            this.seq = seq;
+            this.action = action;
+        }
+
+        public int compareTo(Event other) {
+            if (time != other.time) return Long.compare(time, other.time);
+            if (key != other.key) return Long.compare(key, other.key);
+            return Long.compare(seq, other.seq);
+        }
+    }
+
+    private PriorityQueue<Event> events;  // The pending events
+    private long now;                     // The current virtual time
+    private long seqCount;                // Number of events scheduled so far
+    private int busyRouters;              // Number of routers that still have work to do at this time
+    private boolean firing;               // Events are firing - routers are told about their work after
+    private ArrayList<NetworkInterface> held;  // NICs with work from the events firing now
+    private Debug debug;
+
+    public Simulator() {
+        this(Debug.getInstance());
+    }
+
+    public Simulator(Debug debug) {
+        events = new PriorityQueue<>();
+        now = 0;
+        seqCount = 0;
+        busyRouters = 0;
+        firing = false;
+        held = new ArrayList<>();
+        this.debug = debug;
+    }
+
+    /** Return the current virtual time (in ms) **/
+    public synchronized long now() { return now; }
+
+    /**
+     * Schedule an action to run at the given virtual time, after any keyed events at that time.
+     * Times in the past are treated as "right now".
+     **/
+    public void schedule(long time, Runnable action) {
+        schedule(time, Long.MAX_VALUE, action);
+    }
+
+    /**
+     * Schedule an action to run at the given virtual time.  Events at the same time fire
+     * in (kind, id) order (see ParallelSimulator), so give each its proper kind and id.
+     **/
+    public void schedule(long time, int kind, int id, Runnable action) {
+        schedule(time, ((long) kind << 32) | (id & 0xFFFFFFFFL), action);
+    }
+
+    private synchronized void schedule(long time, long key, Runnable action) {
+        if (time < now) time = now;
+        events.add(new Event(time, key, seqCount++, action));
+    }
+
+    /** Number of events still waiting to fire **/
+    public synchronized int pendingEvents() { return events.size(); }
+
+    /**
+     * Run every event up to (and including) the given virtual time, then leave the clock there.
+     * Before each batch of events and before returning, wait for all routers to go idle.
+     **/
+    public void runUntil(long endTime) {
+        ArrayList<Event> batch = new ArrayList<>();
+        ArrayList<NetworkInterface> wake = new ArrayList<>();
+        while (true) {
+            awaitQuiescence();
+            synchronized (this) {
+                Event next = events.peek();
+                if (next == null || next.time > endTime) {
+                    if (endTime > now) now = endTime;
+                    return;
+                }
+                // Grab every event at this same time - they all fire before routers get to run
+                now = next.time;
+                while (!events.isEmpty() && events.peek().time == now) {
+                    batch.add(events.poll());
+                }
+                firing = true;
+            }
+            // Fire outside the lock: actions talk to the NICs which call back into us
+            for (Event e: batch) {
+                e.action.run();
+            }
+            batch.clear();
+            // Now let the routers get to work
+            synchronized (this) {
+                firing = false;
+                wake.addAll(held);
+                held.clear();
+            }
+            for (NetworkInterface nic: wake) nic.signal();
+            wake.clear();
+        }
+    }
+
+    /** Advance the clock by the given number of milliseconds, firing events along the way **/
+    public void advance(long length) {
+        runUntil(now() + length);
+    }
+
+    /**
+     * Bookkeeping for the NICs: a router is busy while it has something it
+     * has not yet processed at the current virtual time.
+     **/
+    synchronized void routerBusy() {
+        busyRouters++;
+    }
+
+    synchronized void routerIdle() {
+        busyRouters--;
+        if (busyRouters == 0) notifyAll();
+    }
+
+    /**
+     * A NIC has work for its router: while events are firing, hold the signal
+     * (returns true) and send it again once they all have
+     **/
+    synchronized boolean holdSignal(NetworkInterface nic) {
+        if (!firing) return false;
+        held.add(nic);
+        return true;
+    }
+
+    private synchronized void awaitQuiescence() {
+        long deadline = System.currentTimeMillis() + QUIESCENCE_TIMEOUT;
+        while (busyRouters > 0) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                debug.println(2, "(Simulator): " + busyRouters + " routers still busy at time " + now + ".  Moving on.");
+                return;
+            }
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/***************
+ * TimingWheel
+ *
+ * A hierarchical timing wheel for the real time network's timers (link delays,
+ * router wake ups, node failures).  Timers hang off doubly linked buckets, so
+ * scheduling and cancelling are O(1) no matter how many are pending.  Each level
+ * has 256 slots: level 0 holds timers due in the next 256 ticks, level 1 the
+ * next 256*256 ticks, and so on.  As time moves on, the upper level buckets are
+ * cascaded down, and every timer in a level 0 bucket fires together on its tick.
+ ***************/
+import java.util.ArrayList;
+
+public class TimingWheel {
+    private static final int SLOT_BITS = 8;
+    private static final int SLOTS = 1 << SLOT_BITS;   // Slots per level
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final int LEVELS = 4;               // 2^32 ticks before a timer needs the overflow list
+
+    /**
+     * A scheduled timer.  Keep it to cancel the timer later.
+     **/
+    public class Timeout {
+        long deadline;     // Tick at which to fire
+        Runnable task;     // What to run
+        Timeout prev;      // Neighbors in the bucket list
+        Timeout next;
+        Bucket bucket;     // The bucket currently holding this timer (null once fired or cancelled)
+
+        Timeout(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+
+        /** Cancel the timer. Returns false if it already fired or was cancelled. **/
+        public boolean cancel() { return TimingWheel.this.cancel(this); }
+    }
+
+    // A circular doubly linked list of timers, with a sentinel head
+    private class Bucket {
+        Timeout head;
+
+        Bucket() {
+            head = new Timeout(0, null);
+            head.prev = head;
+            head.next = head;
+        }
+
+        void add(Timeout t) {
+            t.bucket = this;
+            t.prev = head.prev;
+            t.next = head;
+            head.prev.next = t;
+            head.prev = t;
+        }
+
+        void remove(Timeout t) {
+            t.prev.next = t.next;
+            t.next.prev = t.prev;
+            t.prev = null;
+            t.next = null;
+            t.bucket = null;
+        }
+
+        /** Unhook every timer in the bucket and return the first (the rest follow via next, ending in null) **/
+        Timeout drain() {
+            if (head.next == head) return null;
+            Timeout first = head.next;
+            head.prev.next = null;
+            head.next = head;
+            head.prev = head;
+            for (Timeout t = first; t != null; t = t.next) t.bucket = null;
+            return first;
+        }
+    }
+
+    private Bucket[][] wheels;   // wheels[level][slot]
+    private Bucket overflow;     // Timers too far out for even the top level
+    private long currentTick;    // The next tick to process (everything before it has fired)
+    private long tickLength;     // How long a tick lasts (in ms)
+
+    // Health counters
+    private long scheduled;      // Timers ever scheduled
+    private long fired;          // Timers that have run
+    private long cancelled;      // Timers cancelled before they ran
+    private long lagging;        // Timers that ran more than a tick after their deadline
+    private long maxLag;         // Worst lag seen (ms)
+
+    public TimingWheel(long startTime, long tickLength) {
+        this.tickLength = tickLength;
+        this.currentTick = startTime / tickLength;
+        wheels = new Bucket[LEVELS][SLOTS];
+        for (int level = 0; level < LEVELS; level++)
+            for (int slot = 0; slot < SLOTS; slot++)
+                wheels[level][slot] = new Bucket();
+        overflow = new Bucket();
+    }
+
+    /**
+     * Schedule a task to run at the given time (ms).  Times already past run on the next tick.
+     **/
+    public synchronized Timeout schedule(long time, Runnable task) {
+        Timeout t = new Timeout(time / tickLength, task);
+        place(t);
+        scheduled++;
+        return t;
+    }
+
+    private synchronized boolean cancel(Timeout t) {
+        if (t.bucket == null) return false;
+        t.bucket.remove(t);
+        cancelled++;
+        return true;
+    }
+
+    // Put a timer in the bucket for its deadline (caller holds the lock)
+    private void place(Timeout t) {
+        long delta = t.deadline - currentTick;
+        if (delta < SLOTS) {
+            // Due soon (or overdue): level 0.  Overdue timers go in the very next slot to fire.
+            long tick = Math.max(t.deadline, currentTick);
+            wheels[0][(int) (tick & SLOT_MASK)].add(t);
+            return;
+        }
+        for (int level = 1; level < LEVELS; level++) {
+            if (delta < 1L << (SLOT_BITS * (level + 1))) {
+                wheels[level][(int) ((t.deadline >>> (SLOT_BITS * level)) & SLOT_MASK)].add(t);
+                return;
+            }
+        }
+        overflow.add(t);
+    }
+
+    /**
+     * Fire every timer due up to (and including) the given time (ms).
+     * Each tick's timers are collected under the lock and run outside it,
+     * so tasks are free to schedule new timers.
+     * @returns the number of timers fired
+     **/
+    public int advanceTo(long time) {
+        long endTick = time / tickLength;
+        int count = 0;
+        ArrayList<Timeout> batch = new ArrayList<>();
+        while (true) {
+            synchronized (this) {
+                if (currentTick > endTick) break;
+                cascade();
+                for (Timeout t = wheels[0][(int) (currentTick & SLOT_MASK)].drain(); t != null; t = t.next) {
+                    batch.add(t);
+                }
+                for (Timeout t: batch) {
+                    long lag = (endTick - t.deadline) * tickLength;
+                    if (lag > tickLength) lagging++;
+                    if (lag > maxLag) maxLag = lag;
+                }
+                fired += batch.size();
+                currentTick++;
+            }
+            for (Timeout t: batch) {
+                t.task.run();
+            }
+            count += batch.size();
+            batch.clear();
+        }
+        return count;
+    }
+
+    // Move the upper level buckets that start at this tick down a level (caller holds the lock)
+    private void cascade() {
+        for (int level = 1; level < LEVELS; level++) {
+            long shift = SLOT_BITS * level;
+            if ((currentTick & ((1L << shift) - 1)) != 0) return;  // Not at a boundary for this level
+            cascadeBucket(wheels[level][(int) ((currentTick >>> shift) & SLOT_MASK)]);
+        }
+        // Wrapped the top level too - the overflow timers may be close enough now
+        cascadeBucket(overflow);
+    }
+
+    private void cascadeBucket(Bucket b) {
+        Timeout t = b.drain();
+        while (t != null) {
+            Timeout next = t.next;
+            t.next = null;
+            place(t);
+            t = next;
+        }
+    }
+
+    public synchronized long getScheduled() { return scheduled; }
+    public synchronized long getFired() { return fired; }
+    public synchronized long getCancelled() { return cancelled; }
+    public synchronized long getLagging() { return lagging; }
+    public synchronized long getMaxLag() { return maxLag; }
+    public synchronized long getPending() { return scheduled - fired - cancelled; }
+
+    public synchronized String toString() {
+        return "Timers scheduled: " + scheduled + ", fired: " + fired + ", cancelled: " + cancelled
+            + ", pending: " + getPending() + ", lagging: " + lagging + " (max lag " + maxLag + " ms)";
+    }
+}
@@ -0,0 +1,309 @@
+/***************
+ * Topology
+ *
+ * The raw description of a network (nodes and links) held in primitive arrays,
+ * as read from a topology file.  Two file formats are supported:
+ *
+ *   .gqu  The text format (see testGraph.gqu)
+ *   .gqb  A compact binary format, loaded through a memory mapped file.
+ *         All values little-endian:
+ *           Header: int magic ("GQB1"), int version (1), int nodeCount, int edgeCount
+ *           Nodes:  nodeCount records of  int nsap, double probDown, double downTime, double downDev
+ *           Edges:  edgeCount records of  int nsapA, int nsapB, double meanSpeed, double stdSpeed
+ *
+ * Memory is exactly 28 bytes per node and 24 bytes per edge (plus array headers).
+ * Use TopologyConverter to turn a .gqu file into a .gqb file, and TopologyGenerator to make large ones.
+ ***************/
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+public class Topology {
+    static final int MAGIC = 0x31425147;   // "GQB1" as little-endian bytes
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 16;
+    static final int NODE_BYTES = 28;
+    static final int EDGE_BYTES = 24;
+
+    int nodeCount;
+    int edgeCount;
+
+    // Nodes
+    int[] nsap;           // The NSAP (ID) of each node
+    double[] probDown;    // Probability the node goes down every second
+    double[] downTime;    // Average time the node stays down (in seconds)
+    double[] downDev;     // Standard deviation of the downtime
+
+    // Edges (by NSAP)
+    int[] edgeSource;     // Source of each link
+    int[] edgeDest;       // Destination of each link
+    double[] meanSpeed;   // Average time to cross the link
+    double[] stdSpeed;    // Standard deviation of that time
+
+    public Topology(int nodeCount, int edgeCount) {
+        this.nodeCount = nodeCount;
+        this.edgeCount = edgeCount;
+        nsap = new int[nodeCount];
+        probDown = new double[nodeCount];
+        downTime = new double[nodeCount];
+        downDev = new double[nodeCount];
+        edgeSource = new int[edgeCount];
+        edgeDest = new int[edgeCount];
+        meanSpeed = new double[edgeCount];
+        stdSpeed = new double[edgeCount];
+    }
+
+    public int getNodeCount() { return nodeCount; }
+    public int getEdgeCount() { return edgeCount; }
+
+    /**
+     * Read a topology file in either format (binary files are recognized by their header)
+     **/
+    public static Topology read(String fileName) throws Exception {
+        if (isBinary(fileName)) return readBinary(fileName);
+        return readText(fileName);
+    }
+
+    /** True if the file starts with the binary format's magic number **/
+    public static boolean isBinary(String fileName) throws IOException {
+        try (RandomAccessFile f = new RandomAccessFile(fileName, "r")) {
+            if (f.length() < 4) return false;
+            return Integer.reverseBytes(f.readInt()) == MAGIC;
+        }
+    }
+
+    /**
+     * Load a network from the given text file - using the described format
+     * (See testGraph.gqu)
+     **/
+    public static Topology readText(String fileName) throws Exception {
+        try (BufferedReader in = new BufferedReader(new FileReader(fileName))) {
+            String[] line = null;
+            // First get the size of the network (nodes and edges)
+            line = getNextLine(in);
+            int n = Integer.parseInt(line[0]);
+            int m = Integer.parseInt(line[1]);
+            Topology t = new Topology(n, m);
+            for (int i = 0; i < n; i++) {
+                line = getNextLine(in);
+                t.nsap[i] = Integer.parseInt(line[0]);
+                t.probDown[i] = Double.parseDouble(line[1]);
+                t.downTime[i] = Double.parseDouble(line[2]);
+                t.downDev[i] = Double.parseDouble(line[3]);
+            }
+            for (int i = 0; i < m; i++) {
+                line = getNextLine(in);
+                t.edgeSource[i] = Integer.parseInt(line[0]);
+                t.edgeDest[i] = Integer.parseInt(line[1]);
+                t.meanSpeed[i] = Double.parseDouble(line[2]);
+                t.stdSpeed[i] = Double.parseDouble(line[3]);
+            }
+            return t;
+        }
+    }
+
+    /**
+     * Get the next line from the buffered reader that is NOT just a pure comment
+     * Returns it as an array of Strings (tokenized by whitespace) and with comments removed
+     */
+    private static String[] getNextLine(BufferedReader in) throws Exception {
+        String[] line;
+        do {
+            String text = in.readLine();
+            if (text == null) throw new Exception("Unexpected end of network file.");
+            line = parseLine(text);
+        } while (line.length == 0);
+        return line;
+    }
+
+    // Split a line into tokens (no regular expressions), ignoring everything after a #
+    private static String[] parseLine(String line) {
+        int end = line.indexOf('#');
+        if (end < 0) end = line.length();
+        String[] tokens = new String[4];
+        int count = 0;
+        int i = 0;
+        while (i < end) {
+            while (i < end && Character.isWhitespace(line.charAt(i))) i++;
+            int start = i;
+            while (i < end && !Character.isWhitespace(line.charAt(i))) i++;
+            if (i > start) {
+                if (count == tokens.length) tokens = java.util.Arrays.copyOf(tokens, count * 2);
+                tokens[count++] = line.substring(start, i);
+            }
+        }
+        return java.util.Arrays.copyOf(tokens, count);
+    }
+
+    /**
+     * Load a binary (.gqb) topology through a memory mapped file
+     **/
+    public static Topology readBinary(String fileName) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(fileName, "r");
+             FileChannel channel = file.getChannel()) {
+            ByteBuffer header = map(channel, 0, HEADER_BYTES);
+            if (header.getInt() != MAGIC) throw new IOException(fileName + " is not a binary network file.");
+            int version = header.getInt();
+            if (version != VERSION) throw new IOException(fileName + ": unsupported binary network version " + version);
+            int n = header.getInt();
+            int m = header.getInt();
+            long expected = HEADER_BYTES + (long) n * NODE_BYTES + (long) m * EDGE_BYTES;
+            if (channel.size() < expected) throw new IOException(fileName + " is truncated.");
+
+            Topology t = new Topology(n, m);
+            ByteBuffer nodes = map(channel, HEADER_BYTES, (long) n * NODE_BYTES);
+            for (int i = 0; i < n; i++) {
+                t.nsap[i] = nodes.getInt();
+                t.probDown[i] = nodes.getDouble();
+                t.downTime[i] = nodes.getDouble();
+                t.downDev[i] = nodes.getDouble();
+            }
+            ByteBuffer edges = map(channel, HEADER_BYTES + (long) n * NODE_BYTES, (long) m * EDGE_BYTES);
+            for (int i = 0; i < m; i++) {
+                t.edgeSource[i] = edges.getInt();
+                t.edgeDest[i] = edges.getInt();
+                t.meanSpeed[i] = edges.getDouble();
+                t.stdSpeed[i] = edges.getDouble();
+            }
+            return t;
+        }
+    }
+
+    private static ByteBuffer map(FileChannel channel, long position, long size) throws IOException {
+        if (size > Integer.MAX_VALUE) throw new IOException("Network file section too large to map (" + size + " bytes).");
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return buffer;
+    }
+
+    /**
+     * Write this topology in the binary (.gqb) format
+     **/
+    public void writeBinary(String fileName) throws IOException {
+        try (BinaryWriter out = new BinaryWriter(fileName)) {
+            for (int i = 0; i < nodeCount; i++) out.writeNode(nsap[i], probDown[i], downTime[i], downDev[i]);
+            for (int i = 0; i < edgeCount; i++) out.writeEdge(edgeSource[i], edgeDest[i], meanSpeed[i], stdSpeed[i]);
+        }
+    }
+
+    /**
+     * Writes a topology file one record at a time (all nodes first, then all edges),
+     * so a topology never has to be held in memory to be written.
+     * The counts in the header are filled in when the writer is closed.
+     **/
+    public interface Writer extends AutoCloseable {
+        void writeNode(int nsap, double probDown, double downTime, double downDev) throws IOException;
+        void writeEdge(int nsapA, int nsapB, double meanSpeed, double stdSpeed) throws IOException;
+        void close() throws IOException;
+    }
+
+    /**
+     * A writer for the given file: binary for a .gqb file, text otherwise
+     **/
+    public static Writer writer(String fileName) throws IOException {
+        return fileName.endsWith(".gqb") ? new BinaryWriter(fileName) : new TextWriter(fileName);
+    }
+
+    /** Writes the binary (.gqb) format **/
+    public static class BinaryWriter implements Writer {
+        private static final int BUFFER_BYTES = 1 << 16;
+
+        private RandomAccessFile file;
+        private FileChannel channel;
+        private ByteBuffer buffer;
+        private int nodes;
+        private int edges;
+
+        public BinaryWriter(String fileName) throws IOException {
+            file = new RandomAccessFile(fileName, "rw");
+            file.setLength(0);
+            channel = file.getChannel();
+            buffer = ByteBuffer.allocateDirect(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(0).putInt(0);  // Counts patched on close
+            nodes = 0;
+            edges = 0;
+        }
+
+        public void writeNode(int nsap, double probDown, double downTime, double downDev) throws IOException {
+            if (edges > 0) throw new IOException("All nodes must be written before the edges.");
+            room(NODE_BYTES);
+            buffer.putInt(nsap).putDouble(probDown).putDouble(downTime).putDouble(downDev);
+            nodes++;
+        }
+
+        public void writeEdge(int nsapA, int nsapB, double meanSpeed, double stdSpeed) throws IOException {
+            room(EDGE_BYTES);
+            buffer.putInt(nsapA).putInt(nsapB).putDouble(meanSpeed).putDouble(stdSpeed);
+            edges++;
+        }
+
+        // Make sure the buffer has space for another record
+        private void room(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) drain();
+        }
+
+        private void drain() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) channel.write(buffer);
+            buffer.clear();
+        }
+
+        public void close() throws IOException {
+            drain();
+            ByteBuffer counts = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+            counts.putInt(nodes).putInt(edges).flip();
+            channel.write(counts, 8);
+            channel.close();
+            file.close();
+        }
+    }
+
+    /**
+     * Writes the text (.gqu) format.  The header line is left blank (but long enough)
+     * and the counts are written into it on close.
+     **/
+    public static class TextWriter implements Writer {
+        private static final int HEADER_WIDTH = 24;  // Room for "nodeCount edgeCount"
+
+        private String fileName;
+        private BufferedWriter out;
+        private int nodes;
+        private int edges;
+
+        public TextWriter(String fileName) throws IOException {
+            this.fileName = fileName;
+            out = new BufferedWriter(new FileWriter(fileName), 1 << 16);
+            out.write(" ".repeat(HEADER_WIDTH));
+            out.newLine();
+            nodes = 0;
+            edges = 0;
+        }
+
+        public void writeNode(int nsap, double probDown, double downTime, double downDev) throws IOException {
+            if (edges > 0) throw new IOException("All nodes must be written before the edges.");
+            out.write(nsap + " " + probDown + " " + downTime + " " + downDev);
+            out.newLine();
+            nodes++;
+        }
+
+        public void writeEdge(int nsapA, int nsapB, double meanSpeed, double stdSpeed) throws IOException {
+            out.write(nsapA + " " + nsapB + " " + meanSpeed + " " + stdSpeed);
+            out.newLine();
+            edges++;
+        }
+
+        public void close() throws IOException {
+            out.close();
+            try (RandomAccessFile file = new RandomAccessFile(fileName, "rw")) {
+                file.write((nodes + " " + edges).getBytes());  // Always fits: two ints are at most 23 characters
+            }
+        }
+    }
+}
@@ -0,0 +1,27 @@
+/***************
+ * TopologyConverter
+ *
+ * Converts a text network file (.gqu) into the binary format (.gqb) - see Topology.
+ * Usage: java TopologyConverter input.gqu [output.gqb]
+ ***************/
+public class TopologyConverter {
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.err.println("Usage: java TopologyConverter input.gqu [output.gqb]");
+            System.exit(1);
+        }
+        String input = args[0];
+        String output = args.length > 1 ? args[1] : input.replaceFirst("\\.gqu$", "") + ".gqb";
+        try {
+            long start = System.currentTimeMillis();
+            Topology t = Topology.readText(input);
+            t.writeBinary(output);
+            System.out.println("Wrote " + output + ": " + t.getNodeCount() + " nodes, " + t.getEdgeCount()
+                               + " edges in " + (System.currentTimeMillis() - start) + " ms");
+        } catch (Exception e) {
+            System.err.println("Error converting network: " + input);
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,296 @@
+/***************
+ * TopologyGenerator
+ *
+ * Makes large synthetic networks, written straight to a .gqb (binary) or .gqu (text) file
+ * one record at a time - nothing is built in memory first, except that Barabasi-Albert has to
+ * remember every link end (8 bytes per link) to pick neighbors by degree.
+ * Every link is written in both directions, with the same speed.
+ *
+ * Usage: java TopologyGenerator model=... out=file.gqb [key=value ...]   (or @file, as BatchRunner)
+ *   model=er        Erdos-Renyi: nodes=N, degree=D (average links per node)
+ *   model=ba        Barabasi-Albert: nodes=N, links=M (per new node, default 2)
+ *   model=grid      rows=R, cols=C (torus=true wraps the edges around)
+ *   model=fattree   k=K (even): k pods of switches, plus k^3/4 hosts (hosts=false leaves them out)
+ *   model=clusters  Ring of clusters: clusters=C, size=S, degree=D (inside a cluster, default 4),
+ *                   bridges=B (links between neighboring clusters, default 1)
+ *   seed=1          Random seed (default 1) - the same seed writes the same file
+ * Distributions (const:x, uniform:a:b, normal:mean:std, exp:mean - never below 0):
+ *   speed=uniform:1:100      Each link's mean speed (ms)
+ *   jitter=const:0.1         Each link's speed standard deviation, as a fraction of its mean speed
+ *   bridgespeed=...          Mean speed of the links between clusters (default: as speed)
+ *   probdown=const:0.001     Each node's chance of failing every second
+ *   downtime=const:5         Each node's mean down time (s)
+ *   downdev=const:2          And its standard deviation
+ ***************/
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+public class TopologyGenerator {
+    /**
+     * A random distribution of non-negative values, e.g. "uniform:1:100"
+     **/
+    static class Distribution {
+        private String kind;
+        private double a, b;
+
+        Distribution(String spec) {
+            String[] parts = spec.split(":");
+            kind = parts[0];
+            int params;
+            switch (kind) {
+            case "const": case "exp": params = 1; break;
+            case "uniform": case "normal": params = 2; break;
+            default: throw new IllegalArgumentException("Unknown distribution: " + spec + " (use const, uniform, normal or exp)");
+            }
+            if (parts.length != params + 1) throw new IllegalArgumentException(kind + " takes " + params + " parameters: " + spec);
+            a = Double.parseDouble(parts[1]);
+            b = params > 1 ? Double.parseDouble(parts[2]) : 0;
+        }
+
+        double sample(SplittableRandom r) {
+            double v;
+            switch (kind) {
+            case "const": v = a; break;
+            case "uniform": v = a + (b - a) * r.nextDouble(); break;
+            case "normal": v = a + b * Network.nextGaussian(r); break;
+            default: v = -a * Math.log(1 - r.nextDouble()); break;  // exp
+            }
+            return Math.max(v, 0);
+        }
+    }
+
+    private Map<String, List<String>> spec;
+    private Topology.Writer out;
+    private SplittableRandom rand;
+    private Distribution speed, jitter, bridgeSpeed, probDown, downTime, downDev;
+
+    public TopologyGenerator(Map<String, List<String>> spec) {
+        this.spec = spec;
+        rand = new SplittableRandom(Long.parseLong(get("seed", "1")));
+        speed = new Distribution(get("speed", "uniform:1:100"));
+        jitter = new Distribution(get("jitter", "const:0.1"));
+        bridgeSpeed = new Distribution(get("bridgespeed", get("speed", "uniform:1:100")));
+        probDown = new Distribution(get("probdown", "const:0.001"));
+        downTime = new Distribution(get("downtime", "const:5"));
+        downDev = new Distribution(get("downdev", "const:2"));
+    }
+
+    public static void main(String[] args) {
+        try {
+            Map<String, List<String>> spec = BatchRunner.parse(args);
+            String file = spec.containsKey("out") ? spec.get("out").get(0) : null;
+            if (file == null || !spec.containsKey("model")) {
+                System.err.println("Usage: java TopologyGenerator model=er|ba|grid|fattree|clusters out=file.gqb [key=value ...]");
+                System.exit(1);
+            }
+            long start = System.currentTimeMillis();
+            long[] counts = new TopologyGenerator(spec).generate(file);
+            System.out.println("Wrote " + file + ": " + counts[0] + " nodes, " + counts[1] + " edges in "
+                               + (System.currentTimeMillis() - start) + " ms");
+        } catch (Exception e) {
+            System.err.println("Error: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Write the network to the given file
+     * @returns the number of nodes and of edges written
+     **/
+    public long[] generate(String fileName) throws Exception {
+        String model = get("model", null);
+        long[] counts = new long[2];
+        try (Topology.Writer w = Topology.writer(fileName)) {
+            out = w;
+            switch (model) {
+            case "er": counts = erdosRenyi(num("nodes"), Double.parseDouble(get("degree", "4"))); break;
+            case "ba": counts = barabasiAlbert(num("nodes"), Integer.parseInt(get("links", "2"))); break;
+            case "grid": counts = grid(num("rows"), num("cols"), Boolean.parseBoolean(get("torus", "false"))); break;
+            case "fattree": counts = fatTree(num("k"), Boolean.parseBoolean(get("hosts", "true"))); break;
+            case "clusters":
+                counts = clusters(num("clusters"), num("size"), Integer.parseInt(get("degree", "4")),
+                                  Integer.parseInt(get("bridges", "1")));
+                break;
+            default: throw new IllegalArgumentException("Unknown model: " + model + " (use er, ba, grid, fattree or clusters)");
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Every pair of nodes linked with the same probability.  Walks the pairs in order,
+     * jumping straight to the next link by a geometric random skip (Batagelj and Brandes),
+     * so it takes time proportional to the links, not to all n^2 pairs.
+     **/
+    private long[] erdosRenyi(int n, double degree) throws Exception {
+        nodes(n);
+        double p = Math.min(1, degree / Math.max(1, n - 1));
+        long links = 0;
+        if (p > 0) {
+            double logq = Math.log(1 - p);
+            long v = 1, w = -1;
+            while (v < n) {
+                w += 1 + (p == 1 ? 0 : (long) Math.floor(Math.log(1 - rand.nextDouble()) / logq));
+                while (w >= v && v < n) {
+                    w -= v;
+                    v++;
+                }
+                if (v < n) {
+                    link((int) v, (int) w, speed);
+                    links++;
+                }
+            }
+        }
+        return new long[] {n, 2 * links};
+    }
+
+    /**
+     * Preferential attachment: each new node links to the given number of distinct earlier nodes,
+     * picked in proportion to their degree (a random end of a random link so far).
+     * Starts from a clique of links+1 nodes.
+     **/
+    private long[] barabasiAlbert(int n, int m) throws Exception {
+        if (m < 1 || n <= m) throw new IllegalArgumentException("Need links >= 1 and nodes > links.");
+        nodes(n);
+        int[] ends = new int[2 * ((m + 1) * m / 2 + (n - m - 1) * m)];
+        int count = 0;
+        for (int u = 0; u <= m; u++) {
+            for (int v = 0; v < u; v++) {
+                link(u, v, speed);
+                ends[count++] = u;
+                ends[count++] = v;
+            }
+        }
+        int[] picked = new int[m];
+        for (int u = m + 1; u < n; u++) {
+            for (int i = 0; i < m; i++) {
+                int v;
+                boolean again;
+                do {
+                    v = ends[rand.nextInt(count)];
+                    again = false;
+                    for (int j = 0; j < i; j++) again |= picked[j] == v;
+                } while (again);
+                picked[i] = v;
+            }
+            for (int v: picked) {
+                link(u, v, speed);
+                ends[count++] = u;
+                ends[count++] = v;
+            }
+        }
+        return new long[] {n, count};
+    }
+
+    /** Each node linked to its neighbors to the right and below (wrapping around on a torus) **/
+    private long[] grid(int rows, int cols, boolean torus) throws Exception {
+        nodes(rows * cols);
+        long links = 0;
+        for (int r = 0; r < rows; r++) {
+            for (int c = 0; c < cols; c++) {
+                int u = r * cols + c;
+                if (c + 1 < cols || (torus && cols > 2)) {
+                    link(u, r * cols + (c + 1) % cols, speed);
+                    links++;
+                }
+                if (r + 1 < rows || (torus && rows > 2)) {
+                    link(u, ((r + 1) % rows) * cols + c, speed);
+                    links++;
+                }
+            }
+        }
+        return new long[] {rows * cols, 2 * links};
+    }
+
+    /**
+     * A k-ary fat-tree (as in data centers): (k/2)^2 core switches, and k pods of k/2
+     * aggregation and k/2 edge switches each, every edge switch with k/2 hosts.
+     * Numbered cores first, then pod by pod (aggregation then edge), then the hosts.
+     **/
+    private long[] fatTree(int k, boolean hosts) throws Exception {
+        if (k < 2 || k % 2 != 0) throw new IllegalArgumentException("k must be even: " + k);
+        int half = k / 2;
+        int cores = half * half;
+        int switches = cores + k * k;
+        int n = switches + (hosts ? k * half * half : 0);
+        nodes(n);
+        long links = 0;
+        for (int pod = 0; pod < k; pod++) {
+            for (int a = 0; a < half; a++) {
+                int agg = cores + pod * k + a;
+                for (int c = 0; c < half; c++) {
+                    link(agg, a * half + c, speed);  // Aggregation switch a of every pod goes to the same k/2 cores
+                    links++;
+                }
+                for (int e = 0; e < half; e++) {
+                    link(agg, cores + pod * k + half + e, speed);
+                    links++;
+                }
+            }
+            if (!hosts) continue;
+            for (int e = 0; e < half; e++) {
+                for (int h = 0; h < half; h++) {
+                    link(cores + pod * k + half + e, switches + (pod * half + e) * half + h, speed);
+                    links++;
+                }
+            }
+        }
+        return new long[] {n, 2 * links};
+    }
+
+    /**
+     * Clusters of the given size in a ring.  Each cluster is a ring plus random links
+     * (like HotPathBenchmark's networks), and neighboring clusters are joined by a few
+     * bridges between random members, with their own speeds.
+     **/
+    private long[] clusters(int clusters, int size, int degree, int bridges) throws Exception {
+        int n = clusters * size;
+        nodes(n);
+        long links = 0;
+        for (int c = 0; c < clusters; c++) {
+            int base = c * size;
+            for (int i = 0; i < size; i++) {
+                for (int d = 0; d < degree / 2; d++) {
+                    int j = d == 0 ? (i + 1) % size : rand.nextInt(size);
+                    if (j == i || (d == 0 && size < 3 && i > 0)) continue;  // No self links or doubled small rings
+                    link(base + i, base + j, speed);
+                    links++;
+                }
+            }
+            if (clusters < 2 || (clusters == 2 && c == 1)) continue;
+            int next = ((c + 1) % clusters) * size;
+            for (int b = 0; b < bridges; b++) {
+                link(base + rand.nextInt(size), next + rand.nextInt(size), bridgeSpeed);
+                links++;
+            }
+        }
+        return new long[] {n, 2 * links};
+    }
+
+    // Nodes 1..n with their failure settings
+    private void nodes(int n) throws Exception {
+        for (int i = 0; i < n; i++) {
+            out.writeNode(i + 1, Math.min(1, probDown.sample(rand)), downTime.sample(rand), downDev.sample(rand));
+        }
+    }
+
+    // A link between the nodes with the given (0 based) indexes, both ways
+    private void link(int u, int v, Distribution mean) throws Exception {
+        double s = mean.sample(rand);
+        double std = s * jitter.sample(rand);
+        out.writeEdge(u + 1, v + 1, s, std);
+        out.writeEdge(v + 1, u + 1, s, std);
+    }
+
+    private String get(String key, String def) {
+        List<String> v = spec.get(key);
+        return v == null ? def : v.get(0);
+    }
+
+    private int num(String key) {
+        String v = get(key, null);
+        if (v == null) throw new IllegalArgumentException("No " + key + "= given.");
+        return Integer.parseInt(v);
+    }
+}
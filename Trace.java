@@ -0,0 +1,201 @@
+/***************
+ * Trace
+ *
+ * Recorded traffic, to replay instead of random packets (workload "trace:file" - see Workload).
+ * A compact binary format, all values little-endian:
+ *   Header:  int magic ("GQT1"), int version (1), long recordCount
+ *   Records: recordCount records of  long time (ns), int source NSAP, int dest NSAP, int size (bytes)
+ * Records are in time order.  Times are relative to the first record when replayed.
+ * Use TraceConverter to make one from a CSV file.
+ *
+ * Replay reads the file through a memory mapped window of WINDOW_RECORDS records that
+ * slides along it (the operating system reads ahead of a sequential mapping), so a trace of
+ * any size is replayed with the same small, fixed footprint.  The simulator's data packets
+ * have no size, so the size field is carried but not used.
+ ***************/
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class Trace {
+    static final int MAGIC = 0x31545147;   // "GQT1" as little-endian bytes
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 16;
+    static final int RECORD_BYTES = 20;
+    static final int WINDOW_RECORDS = 1 << 20;   // Records mapped at a time (20 MB)
+
+    /**
+     * Writes a trace one record at a time.  The count in the header is filled in when the writer is closed.
+     **/
+    public static class Writer implements AutoCloseable {
+        private static final int BUFFER_BYTES = 1 << 16;
+
+        private RandomAccessFile file;
+        private FileChannel channel;
+        private ByteBuffer buffer;
+        private long records;
+        private long lastTime;
+
+        public Writer(String fileName) throws IOException {
+            file = new RandomAccessFile(fileName, "rw");
+            file.setLength(0);
+            channel = file.getChannel();
+            buffer = ByteBuffer.allocateDirect(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC).putInt(VERSION).putLong(0);  // Count patched on close
+            records = 0;
+            lastTime = Long.MIN_VALUE;
+        }
+
+        public void write(long time, int source, int dest, int size) throws IOException {
+            if (time < lastTime) throw new IOException("Trace records must be in time order (record " + (records + 1) + ").");
+            lastTime = time;
+            if (buffer.remaining() < RECORD_BYTES) drain();
+            buffer.putLong(time).putInt(source).putInt(dest).putInt(size);
+            records++;
+        }
+
+        public long getRecords() { return records; }
+
+        private void drain() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) channel.write(buffer);
+            buffer.clear();
+        }
+
+        public void close() throws IOException {
+            drain();
+            ByteBuffer count = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+            count.putLong(records).flip();
+            channel.write(count, 8);
+            channel.close();
+            file.close();
+        }
+    }
+
+    /**
+     * Replays a trace file.  With several traffic threads each one takes every n-th record,
+     * so together they replay all of it.  Records whose nodes are not in the network
+     * (or that go from a node to itself) are skipped.
+     **/
+    public static class Replay implements Workload.Factory {
+        private String fileName;
+        private double speed;
+        private int created;                   // Workloads made so far (decides each one's share)
+        private AtomicLong skipped;
+
+        public Replay(String fileName, double speed) {
+            if (speed <= 0) throw new IllegalArgumentException("Trace speed must be above 0: " + speed);
+            this.fileName = fileName;
+            this.speed = speed;
+            this.created = 0;
+            this.skipped = new AtomicLong();
+        }
+
+        public synchronized Workload create(Network net, double rate, double share, SplittableRandom rand) {
+            int shards = Math.max(1, (int) Math.round(1 / share));
+            try {
+                return new Reader(net, created++ % shards, shards);
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Can not replay " + fileName + ": " + e.getMessage());
+            }
+        }
+
+        /** Records skipped so far because their nodes are not in the network **/
+        public long getSkipped() { return skipped.get(); }
+
+        // One traffic thread's share of the records
+        private class Reader implements Workload {
+            private Network net;
+            private FileChannel channel;   // null once the trace is finished
+            private long count;            // Records in the file
+            private long next;             // The next record this reader takes
+            private int step;              // Records between this reader's ones
+            private long first;            // Time of the first record (ns)
+            private long last;             // Time of the last packet returned (never goes back)
+            private MappedByteBuffer window;
+            private long windowStart;      // Record number at the start of the window
+
+            Reader(Network net, int shard, int shards) throws IOException {
+                this.net = net;
+                RandomAccessFile file = new RandomAccessFile(fileName, "r");
+                channel = file.getChannel();  // (Closing the channel closes the file)
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+                while (header.hasRemaining() && channel.read(header, header.position()) > 0) { }
+                header.flip();
+                if (header.remaining() < HEADER_BYTES || header.getInt() != MAGIC) {
+                    channel.close();
+                    throw new IOException(fileName + " is not a trace file.");
+                }
+                int version = header.getInt();
+                if (version != VERSION) {
+                    channel.close();
+                    throw new IOException(fileName + ": unsupported trace version " + version);
+                }
+                count = header.getLong();
+                if (channel.size() < HEADER_BYTES + count * RECORD_BYTES) {
+                    channel.close();
+                    throw new IOException(fileName + " is truncated.");
+                }
+                next = shard;
+                step = shards;
+                windowStart = -1;
+                first = count > 0 ? record(0).getLong() : 0;
+                last = 0;
+            }
+
+            public long next(int[] pair) {
+                try {
+                    while (next < count) {
+                        ByteBuffer r = record(next);
+                        next += step;
+                        long time = r.getLong();
+                        int s = net.getNodeIndex(r.getInt());
+                        int d = net.getNodeIndex(r.getInt());
+                        if (s < 0 || d < 0 || s == d) {
+                            skipped.incrementAndGet();
+                            continue;
+                        }
+                        pair[0] = s;
+                        pair[1] = d;
+                        last = Math.max(last, (long) ((time - first) / speed));
+                        return last;
+                    }
+                    finish();
+                    return Long.MAX_VALUE;
+                } catch (IOException e) {
+                    net.getDebug().println(0, "Trace replay stopped: " + e.getMessage());
+                    finish();
+                    return Long.MAX_VALUE;
+                }
+            }
+
+            // The buffer positioned at the given record, sliding the window along if needed
+            private ByteBuffer record(long i) throws IOException {
+                if (windowStart < 0 || i < windowStart || i >= windowStart + WINDOW_RECORDS) {
+                    long records = Math.min(WINDOW_RECORDS, count - i);
+                    window = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES + i * RECORD_BYTES, records * RECORD_BYTES);
+                    window.order(ByteOrder.LITTLE_ENDIAN);
+                    windowStart = i;
+                }
+                window.position((int) (i - windowStart) * RECORD_BYTES);
+                return window;
+            }
+
+            private void finish() {
+                next = count;
+                window = null;
+                try {
+                    if (channel != null) channel.close();
+                } catch (IOException e) {
+                    // Nothing more to read anyway
+                }
+                channel = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/***************
+ * TraceConverter
+ *
+ * Converts a CSV traffic trace into the binary trace format (.gqt) - see Trace.
+ * One packet per line:  time,source,dest[,size]   (NSAPs; size in bytes, default 0)
+ * Lines that are blank, start with # or do not start with a number (a header) are skipped.
+ * Times must be in order; the unit is ms unless given (s, ms, us or ns).
+ * Usage: java TraceConverter input.csv [output.gqt] [unit]
+ ***************/
+import java.io.BufferedReader;
+import java.io.FileReader;
+
+public class TraceConverter {
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.err.println("Usage: java TraceConverter input.csv [output.gqt] [s|ms|us|ns]");
+            System.exit(1);
+        }
+        String input = args[0];
+        String output = args.length > 1 ? args[1] : input.replaceFirst("\\.csv$", "") + ".gqt";
+        String unit = args.length > 2 ? args[2] : "ms";
+        try {
+            long start = System.currentTimeMillis();
+            long records = convert(input, output, nanos(unit));
+            System.out.println("Wrote " + output + ": " + records + " records in " + (System.currentTimeMillis() - start) + " ms");
+        } catch (Exception e) {
+            System.err.println("Error converting trace: " + input);
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    // Nanoseconds per unit
+    static double nanos(String unit) {
+        switch (unit) {
+        case "s": return 1e9;
+        case "ms": return 1e6;
+        case "us": return 1e3;
+        case "ns": return 1;
+        default: throw new IllegalArgumentException("Unknown time unit: " + unit + " (use s, ms, us or ns)");
+        }
+    }
+
+    /**
+     * Convert the CSV file, streaming (nothing is kept in memory)
+     * @returns the number of records written
+     **/
+    public static long convert(String input, String output, double nanosPerUnit) throws Exception {
+        try (BufferedReader in = new BufferedReader(new FileReader(input), 1 << 16);
+             Trace.Writer out = new Trace.Writer(output)) {
+            String line;
+            long lineNumber = 0;
+            while ((line = in.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || !(Character.isDigit(line.charAt(0)) || line.charAt(0) == '.')) continue;
+                String[] f = line.split(",");
+                if (f.length < 3) throw new Exception("Line " + lineNumber + ": expected time,source,dest[,size]");
+                try {
+                    long time = Math.round(Double.parseDouble(f[0].trim()) * nanosPerUnit);
+                    int size = f.length > 3 ? Integer.parseInt(f[3].trim()) : 0;
+                    out.write(time, Integer.parseInt(f[1].trim()), Integer.parseInt(f[2].trim()), size);
+                } catch (NumberFormatException e) {
+                    throw new Exception("Line " + lineNumber + ": " + e.getMessage());
+                }
+            }
+            return out.getRecords();
+        }
+    }
+}
@@ -0,0 +1,328 @@
+/***************
+ * Workload
+ *
+ * Where and when runNetwork sends its packets: a stream of (time, source, destination).
+ * Network.setWorkload picks one; without one, runNetwork sends between uniformly random
+ * pairs as it always has.
+ *
+ * Times are in ns from the start of the run, so high rates are paced precisely
+ * (100k packets/s is a packet every 10 us).  In real time the traffic can be spread across
+ * several threads (Network.setTrafficThreads): each gets its own Workload, made by the
+ * Factory with its share of the rate and its own random stream.
+ *
+ * Kinds (see parse):
+ *   poisson                 Exponential gaps (a Poisson process) between uniformly random pairs
+ *   gravity:alpha           Poisson arrivals; each node gets a Pareto(alpha) "mass" and a pair is
+ *                           picked in proportion to the product of the masses (a gravity matrix)
+ *   hotspot:k:fraction      Poisson arrivals from random sources; the given fraction of the packets
+ *                           go to k hot destinations
+ *   onoff:flows:on:off      Fixed random flows, each alternating exponential on and off periods
+ *                           (mean on/off ms) and sending at a constant rate while on - bursty traffic
+ *   cbr:flows               Fixed random flows, each at a constant bit rate
+ *   trace:file[:speed]      Replay a recorded trace (see Trace), speed times as fast as it was recorded
+ *                           (it has its own rate - the packet frequency just has to be above 0)
+ ***************/
+import java.util.SplittableRandom;
+
+public interface Workload {
+    /**
+     * The next packet: fills in its source and destination (pair[0] and pair[1], dense node
+     * indexes, never the same) and returns its time in ns since the start.  Times never decrease.
+     * Long.MAX_VALUE means there are no more packets.
+     **/
+    long next(int[] pair);
+
+    /**
+     * Makes the workload of one traffic thread
+     **/
+    interface Factory {
+        /**
+         * @param net The network (for its nodes)
+         * @param rate Packets per second for the whole network
+         * @param share This workload's share of them (1/number of traffic threads)
+         * @param rand Its own random stream
+         **/
+        Workload create(Network net, double rate, double share, SplittableRandom rand);
+    }
+
+    /**
+     * A workload factory from its description (see above), e.g. "hotspot:10:0.5"
+     **/
+    static Factory parse(String spec) {
+        String[] p = spec.split(":");
+        try {
+            switch (p[0]) {
+            case "poisson":
+                return (net, rate, share, rand) -> new Matrix(net.getNodeCount(), rate * share, rand, null, null);
+            case "gravity":
+                return new Gravity(Double.parseDouble(p[1]));
+            case "hotspot":
+                return new Hotspot(Integer.parseInt(p[1]), Double.parseDouble(p[2]));
+            case "onoff":
+                int flows = Integer.parseInt(p[1]);
+                double on = Double.parseDouble(p[2]), off = Double.parseDouble(p[3]);
+                return (net, rate, share, rand) -> new OnOff(net.getNodeCount(), rate * share, Math.max(1, (int) Math.round(flows * share)), on, off, rand);
+            case "cbr":
+                int cbrFlows = Integer.parseInt(p[1]);
+                return (net, rate, share, rand) -> new ConstantBitRate(net.getNodeCount(), rate * share, Math.max(1, (int) Math.round(cbrFlows * share)), rand);
+            case "trace":
+                // (The file name may itself contain a ':', so the speed is only taken from the end if it is a number)
+                if (p.length < 2) throw new IllegalArgumentException("Bad workload: " + spec);
+                String file = spec.substring(6);
+                double speed = 1;
+                int colon = file.lastIndexOf(':');
+                if (colon > 0 && file.substring(colon + 1).matches("[0-9.]+")) {
+                    speed = Double.parseDouble(file.substring(colon + 1));
+                    file = file.substring(0, colon);
+                }
+                if (file.isEmpty()) throw new IllegalArgumentException("Bad workload: " + spec);
+                return new Trace.Replay(file, speed);
+            default:
+                throw new IllegalArgumentException("Unknown workload: " + spec + " (use poisson, gravity, hotspot, onoff, cbr or trace)");
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            throw new IllegalArgumentException("Bad workload: " + spec);
+        }
+    }
+
+    /**
+     * Poisson arrivals between pairs picked by source and destination weights
+     * (null weights = uniform), using alias tables so a pick is O(1)
+     **/
+    class Matrix implements Workload {
+        private int n;
+        private double meanGap;      // Average ns between packets
+        private double time;         // Time of the last packet (ns)
+        private SplittableRandom rand;
+        private Alias sources, dests;
+
+        public Matrix(int n, double rate, SplittableRandom rand, double[] sourceWeights, double[] destWeights) {
+            if (n < 2) throw new IllegalArgumentException("Traffic needs at least 2 nodes.");
+            this.n = n;
+            this.meanGap = 1e9 / rate;
+            this.time = 0;
+            this.rand = rand;
+            this.sources = sourceWeights == null ? null : new Alias(sourceWeights);
+            this.dests = destWeights == null ? null : new Alias(destWeights);
+        }
+
+        public long next(int[] pair) {
+            time += -meanGap * Math.log(1 - rand.nextDouble());
+            int s = sources == null ? rand.nextInt(n) : sources.pick(rand);
+            int d = dests == null ? s : dests.pick(rand);
+            for (int tries = 0; d == s; tries++) {
+                // Never to itself (and if the weights leave nowhere else, any other node)
+                if (dests != null && tries < 16) {
+                    d = dests.pick(rand);
+                } else {
+                    d = rand.nextInt(n - 1);
+                    if (d >= s) d++;
+                }
+            }
+            pair[0] = s;
+            pair[1] = d;
+            return (long) time;
+        }
+    }
+
+    /**
+     * Gravity matrix.  The masses are drawn once (by the first workload made) and shared,
+     * so every traffic thread uses the same matrix.
+     **/
+    class Gravity implements Factory {
+        private double alpha;
+        private double[] mass;
+
+        public Gravity(double alpha) { this.alpha = alpha; }
+
+        public synchronized Workload create(Network net, double rate, double share, SplittableRandom rand) {
+            int n = net.getNodeCount();
+            if (mass == null || mass.length != n) {
+                mass = new double[n];
+                for (int i = 0; i < n; i++) mass[i] = Math.pow(1 - rand.nextDouble(), -1 / alpha);  // Pareto, minimum 1
+            }
+            return new Matrix(n, rate * share, rand, mass, mass);
+        }
+    }
+
+    /** Hot destinations (picked once, like the gravity masses) **/
+    class Hotspot implements Factory {
+        private int hot;
+        private double fraction;
+        private double[] weight;
+
+        public Hotspot(int hot, double fraction) {
+            if (fraction < 0 || fraction > 1) throw new IllegalArgumentException("Hotspot fraction must be 0-1: " + fraction);
+            this.hot = hot;
+            this.fraction = fraction;
+        }
+
+        public synchronized Workload create(Network net, double rate, double share, SplittableRandom rand) {
+            int n = net.getNodeCount();
+            if (weight == null || weight.length != n) {
+                int k = Math.max(1, Math.min(hot, n - 1));
+                weight = new double[n];
+                java.util.Arrays.fill(weight, (1 - fraction) / n);
+                boolean[] isHot = new boolean[n];
+                for (int picked = 0; picked < k; ) {
+                    int v = rand.nextInt(n);
+                    if (!isHot[v]) {
+                        isHot[v] = true;
+                        weight[v] += fraction / k;
+                        picked++;
+                    }
+                }
+            }
+            return new Matrix(n, rate * share, rand, null, weight);
+        }
+    }
+
+    /**
+     * A fixed set of flows between random pairs, each with its own next packet time.
+     * The earliest is kept on top of a small binary heap.
+     **/
+    abstract class Flows implements Workload {
+        protected int[] source, dest;
+        protected double[] nextTime;   // Each flow's next packet (ns)
+        protected SplittableRandom rand;
+        private int[] heap;            // Flow indexes, earliest next packet on top
+
+        protected Flows(int n, int flows, SplittableRandom rand) {
+            if (n < 2) throw new IllegalArgumentException("Traffic needs at least 2 nodes.");
+            this.rand = rand;
+            source = new int[flows];
+            dest = new int[flows];
+            nextTime = new double[flows];
+            heap = new int[flows];
+            for (int f = 0; f < flows; f++) {
+                source[f] = rand.nextInt(n);
+                dest[f] = rand.nextInt(n - 1);
+                if (dest[f] >= source[f]) dest[f]++;
+                heap[f] = f;
+            }
+        }
+
+        /** Set every flow's first packet time - then the heap can be built **/
+        protected void start() {
+            for (int i = heap.length / 2 - 1; i >= 0; i--) siftDown(i);
+        }
+
+        /** Move the flow's nextTime on past the packet it just sent **/
+        protected abstract void advance(int flow);
+
+        public long next(int[] pair) {
+            int f = heap[0];
+            pair[0] = source[f];
+            pair[1] = dest[f];
+            long time = (long) nextTime[f];
+            advance(f);
+            siftDown(0);
+            return time;
+        }
+
+        private void siftDown(int i) {
+            int f = heap[i];
+            while (true) {
+                int c = 2 * i + 1;
+                if (c >= heap.length) break;
+                if (c + 1 < heap.length && nextTime[heap[c + 1]] < nextTime[heap[c]]) c++;
+                if (nextTime[heap[c]] >= nextTime[f]) break;
+                heap[i] = heap[c];
+                i = c;
+            }
+            heap[i] = f;
+        }
+    }
+
+    /** Constant bit rate flows (random phases, so they do not all send at once) **/
+    class ConstantBitRate extends Flows {
+        private double gap;  // ns between a flow's packets
+
+        public ConstantBitRate(int n, double rate, int flows, SplittableRandom rand) {
+            super(n, flows, rand);
+            gap = 1e9 * flows / rate;
+            for (int f = 0; f < flows; f++) nextTime[f] = gap * rand.nextDouble();
+            start();
+        }
+
+        protected void advance(int flow) { nextTime[flow] += gap; }
+    }
+
+    /**
+     * On-off flows: constant rate while on, silent while off.  The on rate is set so
+     * the average over time is still the requested rate.
+     **/
+    class OnOff extends Flows {
+        private double gap;           // ns between packets while on
+        private double meanOn, meanOff;  // ns
+        private double[] onUntil;     // End of each flow's current on period
+
+        public OnOff(int n, double rate, int flows, double onMs, double offMs, SplittableRandom rand) {
+            super(n, flows, rand);
+            meanOn = onMs * 1e6;
+            meanOff = offMs * 1e6;
+            gap = 1e9 * flows / rate * meanOn / (meanOn + meanOff);
+            onUntil = new double[flows];
+            for (int f = 0; f < flows; f++) {
+                double on = exp(meanOff) * rand.nextDouble();  // Start partway through an off period
+                onUntil[f] = on + exp(meanOn);
+                place(f, on + gap * rand.nextDouble());  // And partway through a gap
+            }
+            start();
+        }
+
+        protected void advance(int flow) { place(flow, nextTime[flow] + gap); }
+
+        // The flow's next packet is t, counting only the time it is on
+        private void place(int flow, double t) {
+            while (t >= onUntil[flow]) {
+                // Off for a while, then the rest of the gap in the next on period (the clock only runs while on)
+                double start = onUntil[flow] + exp(meanOff);
+                t = start + (t - onUntil[flow]);
+                onUntil[flow] = start + exp(meanOn);
+            }
+            nextTime[flow] = t;
+        }
+
+        private double exp(double mean) { return -mean * Math.log(1 - rand.nextDouble()); }
+    }
+
+    /**
+     * Walker's alias method: pick index i with probability weight[i]/sum in O(1)
+     **/
+    class Alias {
+        private double[] prob;
+        private int[] alias;
+
+        public Alias(double[] weight) {
+            int n = weight.length;
+            prob = new double[n];
+            alias = new int[n];
+            double sum = 0;
+            for (double w: weight) sum += w;
+            int[] small = new int[n], large = new int[n];
+            int ns = 0, nl = 0;
+            double[] scaled = new double[n];
+            for (int i = 0; i < n; i++) {
+                scaled[i] = weight[i] * n / sum;
+                if (scaled[i] < 1) small[ns++] = i;
+                else large[nl++] = i;
+            }
+            while (ns > 0 && nl > 0) {
+                int s = small[--ns], l = large[--nl];
+                prob[s] = scaled[s];
+                alias[s] = l;
+                scaled[l] -= 1 - scaled[s];
+                if (scaled[l] < 1) small[ns++] = l;
+                else large[nl++] = l;
+            }
+            while (nl > 0) prob[large[--nl]] = 1;
+            while (ns > 0) prob[small[--ns]] = 1;  // Rounding left overs
+        }
+
+        public int pick(SplittableRandom rand) {
+            int i = rand.nextInt(prob.length);
+            return rand.nextDouble() < prob[i] ? i : alias[i];
+        }
+    }
+}
@@ -0,0 +1,40 @@
+/***************
+ * HotPathFixture
+ *
+ * Gives the JMH benchmarks (in package benchmarks) the simulator's hot paths - see HotPaths.
+ ***************/
+import java.util.Random;
+
+import benchmarks.HotPaths;
+
+public class HotPathFixture implements HotPaths {
+    private HotPathBenchmark paths;
+    private NetworkInterface nic;
+    private Object payload = "payload";
+
+    public void setUp(int nodes, long seed) throws Exception {
+        Debug.getInstance().setLevel(0);
+        paths = new HotPathBenchmark(nodes, new Random(seed));
+    }
+
+    public Object loadText() { return paths.loadText(); }
+    public Object loadBinary() { return paths.loadBinary(); }
+    public Object lsFull() { return paths.lsFull(); }
+    public Object lsIncremental() { return paths.lsIncremental(); }
+    public Object dvTable() { return paths.dvTable(); }
+    public long routeFlood() { return paths.routeFlood(); }
+    public long routeDV() { return paths.routeDV(); }
+    public long routeLS() { return paths.routeLS(); }
+
+    public void setUpQueue() {
+        Debug.getInstance().setLevel(0);
+        nic = HotPathBenchmark.queue();
+    }
+
+    public void receive(int originator) { nic.receive(originator, payload); }
+
+    public Object take() {
+        NetworkInterface.ReceivePair p = nic.getReceived();
+        return p == null ? null : p.data;
+    }
+}
@@ -0,0 +1,66 @@
+/***************
+ * HotPathBenchmarks
+ *
+ * HotPathBenchmark's operations as JMH benchmarks, on generated networks of each size
+ * (the NIC queue is in NicQueueBenchmarks).  The values returned are consumed by JMH,
+ * so none of the work can be optimized away.
+ ***************/
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HotPathBenchmarks {
+    @Param({"100", "1000", "10000"})
+    public int nodes;
+
+    private HotPaths paths;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        paths = HotPaths.create();
+        paths.setUp(nodes, nodes);  // Seeded by the size, as HotPathBenchmark is
+    }
+
+    @Benchmark
+    public Object loadText() { return paths.loadText(); }
+
+    @Benchmark
+    public Object loadBinary() { return paths.loadBinary(); }
+
+    @Benchmark
+    public Object lsFull() { return paths.lsFull(); }
+
+    @Benchmark
+    public Object lsIncremental() { return paths.lsIncremental(); }
+
+    @Benchmark
+    public Object dvTable() { return paths.dvTable(); }
+
+    @Benchmark
+    public long routeFlood() { return paths.routeFlood(); }
+
+    @Benchmark
+    public long routeDV() { return paths.routeDV(); }
+
+    @Benchmark
+    public long routeLS() { return paths.routeLS(); }
+}
@@ -0,0 +1,41 @@
+/***************
+ * HotPaths
+ *
+ * The simulator's hot paths, as the JMH benchmarks see them.
+ * JMH will not generate benchmarks in the default package, and code in a package can not
+ * name the simulator's classes (they are in the default package).  So HotPathFixture, in the
+ * default package, implements this on top of HotPathBenchmark, and the benchmarks find it by name.
+ ***************/
+package benchmarks;
+
+public interface HotPaths {
+    /** Set up every operation on a generated network of the given number of nodes **/
+    void setUp(int nodes, long seed) throws Exception;
+
+    // The operations of HotPathBenchmark (each returns something for JMH to consume)
+    Object loadText();
+    Object loadBinary();
+    Object lsFull();
+    Object lsIncremental();
+    Object dvTable();
+    long routeFlood();
+    long routeDV();
+    long routeLS();
+
+    /** Set up a NIC with no links for the queue operations **/
+    void setUpQueue();
+
+    /** A link adds a payload to the NIC's received queue (dropped if it is full) **/
+    void receive(int originator);
+
+    /** The router takes the next payload off it (null if there is none) **/
+    Object take();
+
+    static HotPaths create() {
+        try {
+            return (HotPaths) Class.forName("HotPathFixture").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("HotPathFixture is not on the class path", e);
+        }
+    }
+}
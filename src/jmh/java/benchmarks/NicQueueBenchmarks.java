@@ -0,0 +1,84 @@
+/***************
+ * NicQueueBenchmarks
+ *
+ * The NIC's received queue: a payload added and taken by one thread, and three links adding
+ * while the router takes.  The links only add a payload for each one the router has taken
+ * (keeping the queue about half full), so the adding and taking is timed - not payloads
+ * dropped off a full queue.
+ ***************/
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Control;
+
+@State(Scope.Group)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NicQueueBenchmarks {
+    static final int ROOM = 512;  // Payloads the links may add ahead of the router (half the NIC queue)
+
+    private HotPaths paths;
+    private AtomicInteger room;   // Payloads the links may still add
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        paths = HotPaths.create();
+        paths.setUpQueue();
+        room = new AtomicInteger(ROOM);
+    }
+
+    @Benchmark
+    @Group("alone")
+    @GroupThreads(1)
+    public Object addAndTake() {
+        paths.receive(2);
+        return paths.take();
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(3)
+    public void links(Control control) {
+        while (!control.stopMeasurement) {
+            int r = room.get();
+            if (r > 0 && room.compareAndSet(r, r - 1)) {
+                paths.receive(2);
+                return;
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public Object router(Control control) {
+        while (!control.stopMeasurement) {
+            Object p = paths.take();
+            if (p != null) {
+                room.incrementAndGet();
+                return p;
+            }
+            Thread.onSpinWait();
+        }
+        return null;
+    }
+}